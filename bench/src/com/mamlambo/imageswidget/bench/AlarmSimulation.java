@@ -0,0 +1,93 @@
+package com.mamlambo.imageswidget.bench;
+
+import java.util.Random;
+
+import com.mamlambo.imageswidget.core.AlarmPlanner;
+import com.mamlambo.imageswidget.core.Clock;
+
+/**
+ * Counts the wakeups a day of widget updates costs with the shared {@link AlarmPlanner} tick, against one exact repeating alarm per widget, and checks that
+ * sharing the tick never updates a widget more often than its own period.
+ *
+ * Each scenario places widgets with a mix of periods and runs a simulated day on a fake clock. The shared alarm is delivered late by a random amount, as
+ * inexact alarms are. A widget fails the check if, at any update, it has been updated more times than whole periods have passed since it was placed.
+ *
+ * Prints one line per scenario and widget period, and exits with status 1 if any check failed.
+ *
+ * <pre>
+ * java -cp out com.mamlambo.imageswidget.bench.AlarmSimulation
+ * </pre>
+ */
+public class AlarmSimulation {
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60 * SECOND;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    // the provider's shortest period
+    private static final long MIN_UPDATE_PERIOD = 30 * SECOND;
+
+    // how late an inexact alarm is delivered, at most
+    private static final long MAX_LATENESS = 30 * SECOND;
+
+    private static boolean failed;
+
+    public static void main(String[] args) {
+        run("slow widgets", new long[] { 20 * MINUTE, 45 * MINUTE });
+        run("mixed", new long[] { MINUTE, 5 * MINUTE, 5 * MINUTE, 20 * MINUTE, 45 * MINUTE, HOUR, 3 * HOUR });
+        run("many fast", new long[] { 30 * SECOND, MINUTE, MINUTE, 90 * SECOND, 2 * MINUTE, 2 * MINUTE, 5 * MINUTE, 10 * MINUTE });
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static void run(String name, long[] periods) {
+        final long[] now = { 0 };
+        AlarmPlanner planner = new AlarmPlanner(new Clock() {
+            public long now() {
+                return now[0];
+            }
+        }, MIN_UPDATE_PERIOD);
+        Random random = new Random(name.hashCode());
+
+        // placed a few seconds apart, as a user would
+        long[] placed = new long[periods.length];
+        for (int i = 0; i < periods.length; i++) {
+            now[0] = i * 7 * SECOND;
+            placed[i] = now[0];
+            planner.setPeriod(i, periods[i]);
+        }
+        long armed = now[0];
+        long tick = planner.getTick();
+
+        int[] updates = new int[periods.length];
+        long[] lastUpdate = placed.clone();
+        long[] totalGap = new long[periods.length];
+        int wakeups = 0;
+        boolean ok = true;
+        for (long scheduled = armed + tick; scheduled < DAY; scheduled += tick) {
+            now[0] = scheduled + (long) (random.nextDouble() * MAX_LATENESS);
+            wakeups++;
+            for (int i : planner.onTick()) {
+                updates[i]++;
+                totalGap[i] += now[0] - lastUpdate[i];
+                lastUpdate[i] = now[0];
+                // never more updates than whole periods since the widget was placed
+                ok &= updates[i] <= (now[0] - placed[i]) / periods[i];
+            }
+        }
+
+        int exactWakeups = 0;
+        for (int i = 0; i < periods.length; i++) {
+            exactWakeups += (DAY - placed[i]) / periods[i];
+        }
+
+        failed |= !ok;
+        System.out.println(String.format("%-14s tick %6.1f min, %6d wakeups vs %6d with an alarm per widget (%.0f%% fewer)  %s", name, tick / (double) MINUTE,
+                wakeups, exactWakeups, 100.0 * (exactWakeups - wakeups) / exactWakeups, ok ? "ok" : "FAILED"));
+        for (int i = 0; i < periods.length; i++) {
+            System.out.println(String.format("    period %6.1f min: %5d updates (at most %5d by the last), mean interval %6.1f min", periods[i] / (double) MINUTE,
+                    updates[i], (lastUpdate[i] - placed[i]) / periods[i], updates[i] > 0 ? totalGap[i] / (double) updates[i] / MINUTE : 0.0));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.mamlambo.imageswidget.bench;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * One measured operation, run on a plain JVM.
+ *
+ * Each benchmark is warmed up, then timed over several rounds. A round reports throughput and, where the JVM can count per-thread allocations, the bytes
+ * allocated per operation. The median round is what gets compared between builds; the spread shows how far to trust it.
+ */
+public abstract class Benchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+    private static final long ROUND_NANOS = 200 * 1000 * 1000L;
+
+    private final String name;
+
+    // anything a benchmark computes goes here so the JIT can't drop the work
+    protected long sink;
+
+    /**
+     * @param name
+     *            Shown in the report
+     */
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Prepares inputs; not timed
+     */
+    protected void setUp() throws Exception {
+    }
+
+    /**
+     * Releases whatever {@link #setUp()} created; not timed
+     */
+    protected void tearDown() throws Exception {
+    }
+
+    /**
+     * Performs the operation once
+     */
+    protected abstract void operation() throws Exception;
+
+    /**
+     * Runs the benchmark and prints one line of results
+     *
+     * @param out
+     *            Where the results go
+     */
+    public void run(PrintStream out) throws Exception {
+        setUp();
+        try {
+            int batch = calibrate();
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                round(batch, null);
+            }
+
+            double[] opsPerSecond = new double[MEASURED_ROUNDS];
+            double[] bytesPerOp = new double[MEASURED_ROUNDS];
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                double[] result = new double[2];
+                round(batch, result);
+                opsPerSecond[i] = result[0];
+                bytesPerOp[i] = result[1];
+            }
+            Arrays.sort(opsPerSecond);
+            Arrays.sort(bytesPerOp);
+
+            out.println(String.format("%-28s %12.1f ops/s (%.1f..%.1f) %12s B/op", name, opsPerSecond[MEASURED_ROUNDS / 2], opsPerSecond[0],
+                    opsPerSecond[MEASURED_ROUNDS - 1], bytesPerOp[0] < 0 ? "n/a" : String.format("%.0f", bytesPerOp[MEASURED_ROUNDS / 2])));
+        } finally {
+            tearDown();
+        }
+    }
+
+    // finds how many operations fill a round
+    private int calibrate() throws Exception {
+        int batch = 1;
+        while (true) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                operation();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= ROUND_NANOS / 10 || batch >= (1 << 24)) {
+                return (int) Math.max(1, Math.min(Integer.MAX_VALUE, batch * (ROUND_NANOS / Math.max(1, elapsed))));
+            }
+            batch *= 2;
+        }
+    }
+
+    private void round(int batch, double[] result) throws Exception {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < batch; i++) {
+            operation();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+
+        if (result != null) {
+            result[0] = batch * 1e9 / elapsed;
+            result[1] = allocatedBefore < 0 ? -1 : (double) (allocatedAfter - allocatedBefore) / batch;
+        }
+    }
+
+    // bytes allocated by this thread so far, or -1 if the JVM doesn't say
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+            if (counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled()) {
+                return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
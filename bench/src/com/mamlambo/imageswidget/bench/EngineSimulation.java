@@ -0,0 +1,159 @@
+package com.mamlambo.imageswidget.bench;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mamlambo.imageswidget.core.DownloadExecutor;
+import com.mamlambo.imageswidget.core.RenderSink;
+import com.mamlambo.imageswidget.core.SlideshowEngine;
+
+/**
+ * Runs a simulated day of a {@link SlideshowEngine} serving many widgets, on a virtual clock and an in-memory network.
+ *
+ * Widgets are spread over a smaller number of feeds on a handful of hosts, step through their images every few minutes, and every few hours each feed
+ * swaps some images for new ones. The engine's refreshes and retries run on a {@link VirtualScheduler}; its downloads run on real threads against a
+ * {@link FakeTransport} and are waited for after each scheduled task. The report shows the requests the day cost and the time and memory it took, and the
+ * run checks that feeds are fetched per feed rather than per widget, that each image is downloaded once however many widgets show it, and that every widget
+ * ends up with its feed's current images.
+ *
+ * Exits with status 1 if any check failed.
+ *
+ * <pre>
+ * java -cp out:kxml2.jar com.mamlambo.imageswidget.bench.EngineSimulation [widgets]
+ * </pre>
+ */
+public class EngineSimulation {
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+
+    // a wall-clock time, since the engine takes a time of 0 for never
+    private static final long START = 1262304000000L;
+
+    private static final int FEEDS = 100;
+    private static final int HOSTS = 5;
+    private static final int IMAGES_PER_FEED = 20;
+    private static final int IMAGE_BYTES = 2 * 1024;
+    private static final long DURATION = 24 * HOUR;
+    private static final long STEP = 10 * MINUTE;
+    private static final long ROTATE_EVERY = 6 * HOUR;
+    private static final int ROTATED_IMAGES = 2;
+
+    // the engine refreshes a feed every two hours, give or take ten minutes
+    private static final long REFRESH_INTERVAL = 2 * HOUR;
+
+    public static void main(String[] args) throws Exception {
+        int widgets = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        // a line per feed pass would drown the report
+        Logger.getLogger("ImagesWidgetEngine").setLevel(Level.WARNING);
+
+        File scratch = PipelineBenchmarks.createScratchDir();
+        final DownloadExecutor downloads = new DownloadExecutor(4, 2, 40);
+        VirtualScheduler scheduler = new VirtualScheduler(START, new Runnable() {
+            public void run() {
+                awaitDownloads(downloads);
+            }
+        });
+        FakeTransport transport = new FakeTransport(IMAGE_BYTES);
+        final AtomicInteger firstImages = new AtomicInteger();
+        long quota = 2L * FEEDS * IMAGES_PER_FEED * IMAGE_BYTES;
+        SlideshowEngine engine = new SlideshowEngine(new File(scratch, "images"), quota, new File(scratch, "playlists"), transport, downloads,
+                new MemoryFeedState(), scheduler, scheduler, new RenderSink() {
+                    public void onFirstImage(int appWidgetId) {
+                        firstImages.incrementAndGet();
+                    }
+
+                    public void onImageRemoved(String imagePath) {
+                    }
+
+                    public void onImageDeleted(String imagePath) {
+                    }
+
+                    public void onFeedRefreshed(String feedUrl) {
+                    }
+                });
+
+        boolean ok;
+        try {
+            int[] generation = new int[FEEDS];
+            int distinctImages = 0;
+            for (int feed = 0; feed < FEEDS; feed++) {
+                transport.putFeed(feedUrl(feed), imageUrls(feed, generation[feed]));
+                distinctImages += IMAGES_PER_FEED;
+            }
+
+            long start = System.nanoTime();
+            for (int id = 0; id < widgets; id++) {
+                engine.showWidget(id, feedUrl(id % FEEDS), false);
+            }
+            int tasks = 0;
+            for (long time = STEP; time <= DURATION; time += STEP) {
+                tasks += scheduler.advanceTo(START + time);
+                if (time % ROTATE_EVERY == 0 && time < DURATION) {
+                    for (int feed = 0; feed < FEEDS; feed++) {
+                        transport.putFeed(feedUrl(feed), imageUrls(feed, ++generation[feed]));
+                        distinctImages += ROTATED_IMAGES;
+                    }
+                }
+                for (int id = 0; id < widgets; id++) {
+                    engine.nextImage(id);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            int complete = 0;
+            for (int id = 0; id < widgets; id++) {
+                if (engine.getImageCount(id) == IMAGES_PER_FEED) {
+                    complete++;
+                }
+            }
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            long heap = runtime.totalMemory() - runtime.freeMemory();
+
+            // a refresh per feed per interval, plus the first
+            int maxFeedRequests = (int) (FEEDS * (DURATION / REFRESH_INTERVAL + 1));
+            boolean perFeed = transport.getFeedRequestCount() <= maxFeedRequests;
+            boolean once = transport.getImageRequestCount() == distinctImages;
+            boolean current = complete == widgets;
+            ok = perFeed && once && current;
+
+            System.out.println(String.format("%d widgets on %d feeds over %d hosts, %d simulated hours in %.1f s, %d scheduled tasks, heap %.1f MB", widgets,
+                    FEEDS, HOSTS, DURATION / HOUR, elapsed / 1e9, tasks, heap / (1024.0 * 1024.0)));
+            System.out.println(String.format("feed requests    %6d (at most %d), %d not modified  %s", transport.getFeedRequestCount(), maxFeedRequests,
+                    transport.getNotModifiedCount(), perFeed ? "ok" : "FAILED"));
+            System.out.println(String.format("image requests   %6d for %d distinct images  %s", transport.getImageRequestCount(), distinctImages, once ? "ok"
+                    : "FAILED"));
+            System.out.println(String.format("complete widgets %6d of %d, %d first images  %s", complete, widgets, firstImages.get(), current ? "ok"
+                    : "FAILED"));
+        } finally {
+            engine.close();
+            PipelineBenchmarks.deleteRecursively(scratch);
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static String feedUrl(int feed) {
+        return "http://feeds" + feed % HOSTS + ".example.com/feed/" + feed + ".xml";
+    }
+
+    // the feed's images after generation rotations, each replacing the oldest few
+    private static String[] imageUrls(int feed, int generation) {
+        String[] urls = new String[IMAGES_PER_FEED];
+        int first = generation * ROTATED_IMAGES;
+        for (int i = 0; i < IMAGES_PER_FEED; i++) {
+            urls[i] = "http://images" + feed % HOSTS + ".example.com/" + feed + "/" + (first + i) + ".jpg";
+        }
+        return urls;
+    }
+
+    // downloads run on real threads; virtual time only moves on once they're done
+    static void awaitDownloads(DownloadExecutor downloads) {
+        while (downloads.getQueueDepth() > 0 || downloads.getActiveDownloads() > 0) {
+            Thread.yield();
+        }
+    }
+}
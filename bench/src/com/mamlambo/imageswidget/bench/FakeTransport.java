@@ -0,0 +1,173 @@
+package com.mamlambo.imageswidget.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mamlambo.imageswidget.core.HttpTransport;
+
+/**
+ * An in-memory stand-in for the network, for running the engine without sockets.
+ *
+ * Feeds are Atom documents listing the image URLs set with {@link #putFeed(String, String[])}; each carries an ETag derived from its content and a request
+ * carrying that ETag is answered with a 304. Any other URL is an image of a fixed size. While a host is failing, every request to it is answered with a 503.
+ * Requests are counted by kind.
+ */
+public class FakeTransport implements HttpTransport {
+    private final int imageBytes;
+    private final ConcurrentHashMap<String, byte[]> feeds = new ConcurrentHashMap<String, byte[]>();
+    private final Set<String> failing = Collections.synchronizedSet(new HashSet<String>());
+
+    private final AtomicInteger feedRequests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private final AtomicInteger imageRequests = new AtomicInteger();
+    private final AtomicInteger failedRequests = new AtomicInteger();
+
+    /**
+     * @param imageBytes
+     *            The size of every image
+     */
+    public FakeTransport(int imageBytes) {
+        this.imageBytes = imageBytes;
+    }
+
+    /**
+     * Serves a feed listing images, replacing whatever was served at url before
+     *
+     * @param url
+     *            The feed's URL
+     * @param imageUrls
+     *            The images it lists, in order
+     */
+    public void putFeed(String url, String[] imageUrls) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<feed xmlns=\"http://www.w3.org/2005/Atom\">\n");
+        for (String imageUrl : imageUrls) {
+            xml.append("<entry><link rel=\"enclosure\" type=\"image/jpeg\" href=\"").append(imageUrl).append("\"/></entry>\n");
+        }
+        xml.append("</feed>\n");
+        try {
+            feeds.put(url, xml.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param host
+     *            The host
+     * @param fail
+     *            true to answer every request to host with a 503 from now on
+     */
+    public void setFailing(String host, boolean fail) {
+        if (fail) {
+            failing.add(host);
+        } else {
+            failing.remove(host);
+        }
+    }
+
+    /**
+     * @return The number of feed requests, including those answered with a 304 or failed
+     */
+    public int getFeedRequestCount() {
+        return feedRequests.get();
+    }
+
+    /**
+     * @return The number of feed requests answered with a 304
+     */
+    public int getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    /**
+     * @return The number of image requests, including failed ones
+     */
+    public int getImageRequestCount() {
+        return imageRequests.get();
+    }
+
+    /**
+     * @return The number of requests answered with a 503
+     */
+    public int getFailedRequestCount() {
+        return failedRequests.get();
+    }
+
+    public Response get(String url, String etag, String lastModified) throws IOException {
+        String host;
+        try {
+            host = new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            throw new IOException("Bad URL: " + url);
+        }
+
+        byte[] feed = feeds.get(url);
+        if (feed != null) {
+            feedRequests.incrementAndGet();
+        } else {
+            imageRequests.incrementAndGet();
+        }
+        if (failing.contains(host)) {
+            failedRequests.incrementAndGet();
+            return new FakeResponse(503, null, new byte[0]);
+        }
+        if (feed == null) {
+            return new FakeResponse(200, null, new byte[imageBytes]);
+        }
+
+        String tag = "\"" + Integer.toHexString(Arrays.hashCode(feed)) + "\"";
+        if (tag.equals(etag)) {
+            notModified.incrementAndGet();
+            return new FakeResponse(304, tag, new byte[0]);
+        }
+        return new FakeResponse(200, tag, feed);
+    }
+
+    private static final class FakeResponse implements Response {
+        private final int status;
+        private final String etag;
+        private final byte[] body;
+
+        FakeResponse(int status, String etag, byte[] body) {
+            this.status = status;
+            this.etag = etag;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getContentLength() {
+            return body.length;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return null;
+        }
+
+        public InputStream getBody() throws IOException {
+            if (status >= 400) {
+                throw new IOException("HTTP " + status);
+            }
+            return new ByteArrayInputStream(body);
+        }
+
+        public void close() {
+        }
+    }
+}
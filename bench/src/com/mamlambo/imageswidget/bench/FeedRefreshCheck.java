@@ -0,0 +1,179 @@
+package com.mamlambo.imageswidget.bench;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.mamlambo.imageswidget.core.Clock;
+import com.mamlambo.imageswidget.core.DownloadExecutor;
+import com.mamlambo.imageswidget.core.RenderSink;
+import com.mamlambo.imageswidget.core.SlideshowEngine;
+import com.mamlambo.imageswidget.core.UrlConnectionTransport;
+
+/**
+ * Checks the engine's conditional feed refresh against the fixture server: a first pass fetches the feed and every image, an unchanged feed is answered
+ * with a 304 and downloads nothing, a changed feed downloads only its new images, and images evicted from the disk cache make the next refresh fetch the
+ * feed in full instead of trusting a 304. Finally the engine is restarted over the same directories and validators, and its first refresh of the feed has to
+ * be answered with a 304 too.
+ *
+ * Prints one line per step and exits with status 1 if any step didn't behave.
+ *
+ * <pre>
+ * java -cp out:kxml2.jar com.mamlambo.imageswidget.bench.FeedRefreshCheck [fixtures directory]
+ * </pre>
+ */
+public class FeedRefreshCheck {
+    private static final int IMAGES = 10;
+    // images the changed feed replaces, and the images of the second feed
+    private static final int REPLACED = 2;
+    private static final int SECOND_FEED_IMAGES = 5;
+    private static final int IMAGE_BYTES = 4 * 1024;
+    private static final long STEP_TIMEOUT = 10 * 1000;
+
+    private final FixtureServer server;
+    private final File scratch;
+    private final MemoryFeedState feedState = new MemoryFeedState();
+    private SlideshowEngine engine;
+    private final Semaphore refreshed = new Semaphore(0);
+    private boolean failed;
+
+    public static void main(String[] args) throws Exception {
+        File fixtures = new File(args.length > 0 ? args[0] : "fixtures");
+        File scratch = PipelineBenchmarks.createScratchDir();
+        FixtureServer server = new FixtureServer(fixtures);
+        FeedRefreshCheck check = null;
+        try {
+            check = new FeedRefreshCheck(server, scratch);
+            check.run();
+        } finally {
+            if (check != null) {
+                check.engine.close();
+            }
+            server.stop();
+            PipelineBenchmarks.deleteRecursively(scratch);
+        }
+        if (check.failed) {
+            System.exit(1);
+        }
+    }
+
+    private FeedRefreshCheck(FixtureServer server, File scratch) {
+        this.server = server;
+        this.scratch = scratch;
+        engine = startEngine();
+    }
+
+    // an engine over the scratch directories and the validators kept so far, as the service would start after being killed
+    private SlideshowEngine startEngine() {
+        // room for one feed's images and the ones a change replaces, so a change evicts nothing and a second feed evicts some of them
+        return new SlideshowEngine(new File(scratch, "images"), (long) (IMAGES + REPLACED) * IMAGE_BYTES, new File(scratch, "playlists"), new UrlConnectionTransport(),
+                new DownloadExecutor(4, 2, 40), feedState, Clock.WALL, new RenderSink() {
+                    public void onFirstImage(int appWidgetId) {
+                    }
+
+                    public void onImageRemoved(String imagePath) {
+                    }
+
+                    public void onImageDeleted(String imagePath) {
+                    }
+
+                    public void onFeedRefreshed(String feedUrl) {
+                        refreshed.release();
+                    }
+                });
+    }
+
+    private void run() throws InterruptedException {
+        String feedA = server.url("/feeds/a.xml");
+        String feedB = server.url("/feeds/b.xml");
+        server.putFeed("a.xml", feed("a", 0, IMAGES));
+        server.putFeed("b.xml", feed("b", 0, SECOND_FEED_IMAGES));
+
+        // a new widget's feed is fetched straight away
+        int requests = server.getRequestCount();
+        engine.showWidget(1, feedA, false);
+        awaitPass();
+        expect("first pass", server.getRequestCount() - requests, 1 + IMAGES, 0, 0, engine.getImageCount(1), IMAGES);
+
+        requests = server.getRequestCount();
+        int notModified = server.getNotModifiedCount();
+        refresh(feedA);
+        expect("unchanged feed", server.getRequestCount() - requests, 1, server.getNotModifiedCount() - notModified, 1, engine.getImageCount(1), IMAGES);
+
+        server.putFeed("a.xml", feed("a", REPLACED, IMAGES));
+        requests = server.getRequestCount();
+        notModified = server.getNotModifiedCount();
+        refresh(feedA);
+        expect("changed feed", server.getRequestCount() - requests, 1 + REPLACED, server.getNotModifiedCount() - notModified, 0, engine.getImageCount(1), IMAGES);
+
+        // a second feed pushes the replaced images and some of the current ones out of the cache
+        engine.showWidget(2, feedB, false);
+        awaitPass();
+        int left = engine.getImageCount(1);
+        // what widget 1 shows is kept over what widget 2 only downloaded; two passes' worth of steps cover one whole pass wherever it starts
+        for (int i = 0; i < 2 * left; i++) {
+            engine.nextImage(1);
+        }
+        requests = server.getRequestCount();
+        notModified = server.getNotModifiedCount();
+        refresh(feedA);
+        expect("after eviction", server.getRequestCount() - requests, 1 + IMAGES - left, server.getNotModifiedCount() - notModified, 0,
+                engine.getImageCount(1), IMAGES);
+
+        requests = server.getRequestCount();
+        notModified = server.getNotModifiedCount();
+        refresh(feedA);
+        expect("unchanged again", server.getRequestCount() - requests, 1, server.getNotModifiedCount() - notModified, 1, engine.getImageCount(1), IMAGES);
+
+        // the playlist comes back from its index and the feed's listing from the validators' store, so nothing is missing and a 304 will do
+        engine.close();
+        engine = startEngine();
+        engine.showWidget(1, feedA, false);
+        requests = server.getRequestCount();
+        notModified = server.getNotModifiedCount();
+        refresh(feedA);
+        expect("after restart", server.getRequestCount() - requests, 1, server.getNotModifiedCount() - notModified, 1, engine.getImageCount(1), IMAGES);
+    }
+
+    private void refresh(String feedUrl) throws InterruptedException {
+        engine.refreshNow(feedUrl);
+        awaitPass();
+    }
+
+    // waits for a feed pass and the downloads it started
+    private void awaitPass() throws InterruptedException {
+        if (!refreshed.tryAcquire(STEP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("Feed pass timed out");
+        }
+        DownloadExecutor downloads = engine.getDownloads();
+        long deadline = System.currentTimeMillis() + STEP_TIMEOUT;
+        while (downloads.getQueueDepth() > 0 || downloads.getActiveDownloads() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Downloads timed out");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private void expect(String step, int requests, int expectedRequests, int notModified, int expectedNotModified, int images, int expectedImages) {
+        boolean ok = requests == expectedRequests && notModified == expectedNotModified && images == expectedImages;
+        failed |= !ok;
+        System.out.println(String.format("%-16s %3d requests (expected %3d), %d not modified (expected %d), %3d images (expected %3d)  %s", step, requests,
+                expectedRequests, notModified, expectedNotModified, images, expectedImages, ok ? "ok" : "FAILED"));
+    }
+
+    // an Atom feed of count images on the fixture server, starting from image first
+    private byte[] feed(String name, int first, int count) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<feed xmlns=\"http://www.w3.org/2005/Atom\">\n");
+        for (int i = first; i < first + count; i++) {
+            xml.append("<entry><link rel=\"enclosure\" type=\"image/jpeg\" href=\"").append(server.url("/images/" + IMAGE_BYTES + "/" + name + i + ".jpg"))
+                    .append("\"/></entry>\n");
+        }
+        xml.append("</feed>\n");
+        try {
+            return xml.toString().getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.mamlambo.imageswidget.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the feed and image hosts, so benchmarks measure the client rather than the network.
+ *
+ * {@code /feeds/<name>} serves a feed set with {@link #putFeed(String, byte[])}, or else a file from the fixtures directory, gzip-compressed if the client
+ * asks for it. Feeds carry an ETag derived from their content and are answered with a 304 when the client already has that version.
+ * {@code /images/<bytes>/<anything>} serves that many bytes of random data as a JPEG, enough to exercise the download path without decoding.
+ *
+ * Faults can be injected: while failing, every request is answered with a 503.
+ */
+public class FixtureServer {
+    private final HttpServer server;
+    private final File fixtures;
+    private final ConcurrentHashMap<String, byte[]> feeds = new ConcurrentHashMap<String, byte[]>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private volatile boolean failing;
+
+    /**
+     * Starts serving on a free port on the loopback interface
+     *
+     * @param fixtures
+     *            Directory the feeds are read from
+     */
+    public FixtureServer(File fixtures) throws IOException {
+        this.fixtures = fixtures;
+        // headers and body go out as separate writes; without this, delayed ACKs add ~40ms to every response on loopback
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/feeds/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (fail(exchange)) {
+                    return;
+                }
+                String name = exchange.getRequestURI().getPath().substring("/feeds/".length());
+                byte[] body = feeds.get(name);
+                if (body == null) {
+                    File file = new File(FixtureServer.this.fixtures, name);
+                    if (name.indexOf('/') >= 0 || !file.isFile()) {
+                        send(exchange, 404, "text/plain", new byte[0]);
+                        return;
+                    }
+                    body = read(file);
+                }
+
+                String etag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    send(exchange, 304, "application/atom+xml", new byte[0]);
+                } else {
+                    String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                    if (accept != null && accept.indexOf("gzip") >= 0) {
+                        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                        body = gzip(body);
+                    }
+                    send(exchange, 200, "application/atom+xml", body);
+                }
+            }
+        });
+        server.createContext("/images/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (fail(exchange)) {
+                    return;
+                }
+                String rest = exchange.getRequestURI().getPath().substring("/images/".length());
+                int slash = rest.indexOf('/');
+                int size;
+                try {
+                    size = Integer.parseInt(slash < 0 ? rest : rest.substring(0, slash));
+                } catch (NumberFormatException e) {
+                    send(exchange, 400, "text/plain", new byte[0]);
+                    return;
+                }
+                byte[] body = new byte[size];
+                new Random(size).nextBytes(body);
+                send(exchange, 200, "image/jpeg", body);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @param path
+     *            Path on the server, starting with a slash
+     * @return The absolute URL for path
+     */
+    public String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /**
+     * Serves a feed from memory instead of the fixtures directory
+     *
+     * @param name
+     *            The feed's name, as in {@code /feeds/<name>}
+     * @param body
+     *            The document
+     */
+    public void putFeed(String name, byte[] body) {
+        feeds.put(name, body);
+    }
+
+    /**
+     * @param failing
+     *            true to answer every request with a 503 from now on
+     */
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    /**
+     * @return The number of requests received so far, failed or not
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return The number of feed requests answered with a 304 so far
+     */
+    public int getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    /**
+     * Stops serving
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    // counts the request, and answers it with a 503 while failing
+    private boolean fail(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        if (failing) {
+            send(exchange, 503, "text/plain", new byte[0]);
+            return true;
+        }
+        return false;
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.mamlambo.imageswidget.bench;
+
+import java.util.HashMap;
+
+import com.mamlambo.imageswidget.core.FeedStateStore;
+
+/**
+ * Keeps feed validators and image lists in memory, in place of the preferences the app stores them in
+ */
+public class MemoryFeedState implements FeedStateStore {
+    private final HashMap<String, String> etags = new HashMap<String, String>();
+    private final HashMap<String, String> lastModified = new HashMap<String, String>();
+    private final HashMap<String, String[]> imageUrls = new HashMap<String, String[]>();
+
+    public synchronized String getETag(String feedUrl) {
+        return etags.get(feedUrl);
+    }
+
+    public synchronized String getLastModified(String feedUrl) {
+        return lastModified.get(feedUrl);
+    }
+
+    public synchronized String[] getImageUrls(String feedUrl) {
+        return imageUrls.get(feedUrl);
+    }
+
+    public synchronized void store(String feedUrl, String etag, String lastModified, String[] imageUrls) {
+        this.etags.put(feedUrl, etag);
+        this.lastModified.put(feedUrl, lastModified);
+        this.imageUrls.put(feedUrl, imageUrls);
+    }
+
+    public synchronized void clear(String feedUrl) {
+        etags.remove(feedUrl);
+        lastModified.remove(feedUrl);
+        imageUrls.remove(feedUrl);
+    }
+}
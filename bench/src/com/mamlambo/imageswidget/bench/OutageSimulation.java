@@ -0,0 +1,170 @@
+package com.mamlambo.imageswidget.bench;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mamlambo.imageswidget.core.DownloadExecutor;
+import com.mamlambo.imageswidget.core.HostBreaker;
+import com.mamlambo.imageswidget.core.RenderSink;
+import com.mamlambo.imageswidget.core.SlideshowEngine;
+
+/**
+ * Shows what a host outage costs a {@link SlideshowEngine}, whose {@link HostBreaker} holds requests back from a host that keeps failing.
+ *
+ * Widgets follow a few feeds whose images live on a separate host, and the engine runs on a virtual clock against an in-memory network that answers every
+ * request to the failing hosts with a 503 for the first part of the run. In the first scenario only the image host is down, so the feeds are read and their
+ * downloads are parked until the host is back; in the second the feed host is down too, so the feed refreshes themselves are deferred. The report shows how
+ * many requests the dead hosts were sent and when every widget had its images, and the run checks that:
+ * <ul>
+ * <li>the dead hosts were sent no more than the failures that open the breaker, the downloads already running then, and a trial per cool-down
+ * <li>every widget ends up with all its images
+ * <li>with only the image host down, the parked downloads are retried once it's back, without waiting for the next feed refresh
+ * </ul>
+ *
+ * Exits with status 1 if any check failed.
+ *
+ * <pre>
+ * java -cp out:kxml2.jar com.mamlambo.imageswidget.bench.OutageSimulation
+ * </pre>
+ */
+public class OutageSimulation {
+    private static final long MINUTE = 60 * 1000;
+
+    // a wall-clock time, since the engine takes a time of 0 for never
+    private static final long START = 1262304000000L;
+
+    private static final int WIDGETS = 30;
+    private static final int FEEDS = 3;
+    private static final int IMAGES_PER_FEED = 20;
+    private static final int IMAGE_BYTES = 4 * 1024;
+    private static final long OUTAGE = 45 * MINUTE;
+    private static final long DURATION = 240 * MINUTE;
+
+    private static final String FEED_HOST = "feeds.example.com";
+    private static final String IMAGE_HOST = "images.example.com";
+
+    // the engine's breaker settings
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long MIN_COOL_DOWN = MINUTE;
+    private static final long MAX_COOL_DOWN = 60 * MINUTE;
+
+    private static final int DOWNLOADS_PER_HOST = 2;
+
+    private static boolean failed;
+
+    public static void main(String[] args) throws Exception {
+        // every failed request logs a stack trace
+        Logger.getLogger("ImagesWidgetEngine").setLevel(Level.OFF);
+
+        run("image host down", new String[] { IMAGE_HOST });
+        run("both hosts down", new String[] { FEED_HOST, IMAGE_HOST });
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static void run(String name, String[] down) throws Exception {
+        File scratch = PipelineBenchmarks.createScratchDir();
+        final DownloadExecutor downloads = new DownloadExecutor(4, DOWNLOADS_PER_HOST, 100);
+        VirtualScheduler scheduler = new VirtualScheduler(START, new Runnable() {
+            public void run() {
+                EngineSimulation.awaitDownloads(downloads);
+            }
+        });
+        FakeTransport transport = new FakeTransport(IMAGE_BYTES);
+        SlideshowEngine engine = new SlideshowEngine(new File(scratch, "images"), 2L * FEEDS * IMAGES_PER_FEED * IMAGE_BYTES, new File(scratch, "playlists"),
+                transport, downloads, new MemoryFeedState(), scheduler, scheduler, new RenderSink() {
+                    public void onFirstImage(int appWidgetId) {
+                    }
+
+                    public void onImageRemoved(String imagePath) {
+                    }
+
+                    public void onImageDeleted(String imagePath) {
+                    }
+
+                    public void onFeedRefreshed(String feedUrl) {
+                    }
+                });
+
+        try {
+            for (int feed = 0; feed < FEEDS; feed++) {
+                String[] urls = new String[IMAGES_PER_FEED];
+                for (int i = 0; i < IMAGES_PER_FEED; i++) {
+                    urls[i] = "http://" + IMAGE_HOST + "/" + feed + "/" + i + ".jpg";
+                }
+                transport.putFeed(feedUrl(feed), urls);
+            }
+            for (String host : down) {
+                transport.setFailing(host, true);
+            }
+
+            for (int id = 0; id < WIDGETS; id++) {
+                engine.showWidget(id, feedUrl(id % FEEDS), false);
+            }
+            for (long time = MINUTE; time <= OUTAGE; time += MINUTE) {
+                scheduler.advanceTo(START + time);
+            }
+            int outageRequests = transport.getFailedRequestCount();
+            int outageFeedRequests = transport.getFeedRequestCount();
+            for (String host : down) {
+                transport.setFailing(host, false);
+            }
+
+            long doneAt = -1;
+            int feedRequestsWhenDone = 0;
+            for (long time = OUTAGE; time <= DURATION && doneAt < 0; time += MINUTE) {
+                scheduler.advanceTo(START + time);
+                if (complete(engine)) {
+                    doneAt = time;
+                    feedRequestsWhenDone = transport.getFeedRequestCount();
+                }
+            }
+
+            // per dead host, the failures that open its breaker, what was already running then, and a trial after each cool-down that ends in the outage
+            int maxOutageRequests = down.length * (FAILURE_THRESHOLD + DOWNLOADS_PER_HOST + trials(OUTAGE));
+            boolean held = outageRequests <= maxOutageRequests;
+            boolean recovered = doneAt >= 0;
+            // the feeds were read once, before the image host failed them, so nothing but the parked retries could have brought the images in
+            boolean parked = down.length > 1 || (recovered && feedRequestsWhenDone == outageFeedRequests);
+            boolean ok = held && recovered && parked;
+            failed |= !ok;
+
+            System.out.println(String.format("%-16s %4d requests to dead hosts in %d min (at most %d), every widget complete %s  %s", name, outageRequests,
+                    OUTAGE / MINUTE, maxOutageRequests, recovered ? (doneAt - OUTAGE) / MINUTE + " min after recovery" : "never", ok ? "ok" : "FAILED"));
+            System.out.println(String.format("    %d feed requests, %d image requests for %d images%s", transport.getFeedRequestCount(),
+                    transport.getImageRequestCount(), FEEDS * IMAGES_PER_FEED, down.length > 1 ? "" : parked ? ", parked downloads retried"
+                            : ", parked downloads NOT retried"));
+        } finally {
+            engine.close();
+            PipelineBenchmarks.deleteRecursively(scratch);
+        }
+    }
+
+    private static boolean complete(SlideshowEngine engine) {
+        for (int id = 0; id < WIDGETS; id++) {
+            if (engine.getImageCount(id) < IMAGES_PER_FEED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the most cool-downs that can end within time, each being at least half of its doubling share
+    private static int trials(long time) {
+        int trials = 0;
+        long elapsed = 0;
+        while (true) {
+            elapsed += Math.min(MAX_COOL_DOWN, MIN_COOL_DOWN << trials) / 2;
+            if (elapsed > time) {
+                return trials;
+            }
+            trials++;
+        }
+    }
+
+    private static String feedUrl(int feed) {
+        return "http://" + FEED_HOST + "/feed/" + feed + ".xml";
+    }
+}
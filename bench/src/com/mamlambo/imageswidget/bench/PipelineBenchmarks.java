@@ -0,0 +1,251 @@
+package com.mamlambo.imageswidget.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import com.mamlambo.imageswidget.core.DiskCache;
+import com.mamlambo.imageswidget.core.FeedParser;
+import com.mamlambo.imageswidget.core.HttpTransport;
+import com.mamlambo.imageswidget.core.ImageTransfer;
+import com.mamlambo.imageswidget.core.Playlist;
+import com.mamlambo.imageswidget.core.UrlConnectionTransport;
+
+/**
+ * Throughput and allocation numbers for the plain-Java stages of a widget refresh: fetching and parsing the feed, downloading an image into the cache,
+ * picking the next image and building the state keys.
+ *
+ * Decoding and rendering need the Android framework and aren't covered; {@link com.mamlambo.imageswidget.core.Metrics} records them on a device instead.
+ *
+ * Runs on a desktop JVM with the app's plain-Java sources and an XmlPull implementation such as kXML 2 on the classpath, from the {@code bench} directory:
+ *
+ * <pre>
+ * java -cp out:kxml2.jar com.mamlambo.imageswidget.bench.PipelineBenchmarks [fixtures directory]
+ * </pre>
+ *
+ * Run it before and after a change on the same machine and compare the medians.
+ */
+public class PipelineBenchmarks {
+    private static final int PLAYLIST_SIZE = 100;
+    private static final int IMAGE_BYTES = 24 * 1024;
+
+    // the keys ImagesWidgetConfiguration defines; copied, since it's an Activity and doesn't load off the device
+    private static final String PREFS_UPDATE_RATE_FIELD_PATTERN = "UpdateRate-%d";
+    private static final String PREFS_CONTROLS_ACTIVE_FIELD_PATTERN = "ControlsActive-%d";
+    private static final String PREFS_PAUSED_FIELD_PATTERN = "Paused-%d";
+    private static final String PREFS_FEED_URL_PATTERN = "FeedURL-%d";
+    private static final String PREFS_LAST_IMAGE_PATTERN = "LastImage-%d";
+
+    public static void main(String[] args) throws Exception {
+        final File fixtures = new File(args.length > 0 ? args[0] : "fixtures");
+        final FixtureServer server = new FixtureServer(fixtures);
+        final File scratch = createScratchDir();
+        final UrlConnectionTransport transport = new UrlConnectionTransport();
+
+        try {
+            final byte[] atom = FixtureServer.read(new File(fixtures, "flickr-atom.xml"));
+            final byte[] mediaRss = FixtureServer.read(new File(fixtures, "media-rss.xml"));
+
+            Benchmark[] benchmarks = {
+                    new ParseBenchmark("parse atom", atom),
+                    new ParseBenchmark("parse media rss", mediaRss),
+
+                    // the work getAndParseFeedUrl does per enclosure, without the downloads
+                    new Benchmark("parse atom + cache paths") {
+                        DiskCache cache;
+
+                        @Override
+                        protected void setUp() throws Exception {
+                            cache = new DiskCache(new File(scratch, "paths"), IMAGE_BYTES * 100L);
+                        }
+
+                        @Override
+                        protected void tearDown() {
+                            cache.close();
+                        }
+
+                        @Override
+                        protected void operation() throws Exception {
+                            FeedParser.parse(new ByteArrayInputStream(atom), null, new FeedParser.EnclosureListener() {
+                                public boolean onEnclosure(String url, String type) {
+                                    sink += cache.getFile(url).getPath().length();
+                                    return true;
+                                }
+                            });
+                        }
+                    },
+
+                    new Benchmark("fetch + parse atom") {
+                        URL feed;
+
+                        @Override
+                        protected void setUp() throws Exception {
+                            feed = new URL(server.url("/feeds/flickr-atom.xml"));
+                        }
+
+                        @Override
+                        protected void operation() throws Exception {
+                            HttpURLConnection connection = (HttpURLConnection) feed.openConnection();
+                            InputStream in = connection.getInputStream();
+                            try {
+                                sink += FeedParser.parse(in, null, new FeedParser.EnclosureListener() {
+                                    public boolean onEnclosure(String url, String type) {
+                                        return true;
+                                    }
+                                });
+                            } finally {
+                                in.close();
+                            }
+                        }
+                    },
+
+                    // what the engine does: gzip and a kept-alive connection
+                    new Benchmark("fetch + parse atom, shared transport") {
+                        String feed;
+
+                        @Override
+                        protected void setUp() throws Exception {
+                            feed = server.url("/feeds/flickr-atom.xml");
+                        }
+
+                        @Override
+                        protected void operation() throws Exception {
+                            HttpTransport.Response response = transport.get(feed, null, null);
+                            try {
+                                InputStream in = response.getBody();
+                                try {
+                                    sink += FeedParser.parse(in, null, new FeedParser.EnclosureListener() {
+                                        public boolean onEnclosure(String url, String type) {
+                                            return true;
+                                        }
+                                    });
+                                } finally {
+                                    in.close();
+                                }
+                            } finally {
+                                response.close();
+                            }
+                        }
+                    },
+
+                    // the body of downloadImageToCache: stream to a temp file, rename, record in the journal
+                    new Benchmark("download image to cache") {
+                        DiskCache cache;
+                        String image;
+                        int n;
+
+                        @Override
+                        protected void setUp() throws Exception {
+                            cache = new DiskCache(new File(scratch, "images"), IMAGE_BYTES * 100L);
+                            image = server.url("/images/" + IMAGE_BYTES + "/");
+                        }
+
+                        @Override
+                        protected void tearDown() {
+                            cache.close();
+                        }
+
+                        @Override
+                        protected void operation() throws Exception {
+                            String url = image + (n++) + ".jpg";
+                            File path = cache.getFile(url);
+                            HttpTransport.Response response = transport.get(url, null, null);
+                            try {
+                                InputStream in = response.getBody();
+                                try {
+                                    long size = ImageTransfer.copy(in, response.getContentLength(), path);
+                                    cache.commit(url, size);
+                                    sink += size;
+                                } finally {
+                                    in.close();
+                                }
+                            } finally {
+                                response.close();
+                            }
+                        }
+                    },
+
+                    new PlaylistBenchmark("playlist next, shuffled", true),
+                    new PlaylistBenchmark("playlist next, in order", false),
+
+                    // what WidgetStateStore builds once per widget
+                    new Benchmark("state keys") {
+                        int appWidgetId;
+
+                        @Override
+                        protected void operation() {
+                            int id = appWidgetId++;
+                            sink += String.format(PREFS_UPDATE_RATE_FIELD_PATTERN, id).length();
+                            sink += String.format(PREFS_PAUSED_FIELD_PATTERN, id).length();
+                            sink += String.format(PREFS_CONTROLS_ACTIVE_FIELD_PATTERN, id).length();
+                            sink += String.format(PREFS_FEED_URL_PATTERN, id).length();
+                            sink += String.format(PREFS_LAST_IMAGE_PATTERN, id).length();
+                        }
+                    } };
+
+            for (Benchmark benchmark : benchmarks) {
+                benchmark.run(System.out);
+            }
+        } finally {
+            server.stop();
+            deleteRecursively(scratch);
+        }
+    }
+
+    private static class ParseBenchmark extends Benchmark {
+        private final byte[] feed;
+        private final FeedParser.EnclosureListener listener = new FeedParser.EnclosureListener() {
+            public boolean onEnclosure(String url, String type) {
+                sink += url.length();
+                return true;
+            }
+        };
+
+        ParseBenchmark(String name, byte[] feed) {
+            super(name);
+            this.feed = feed;
+        }
+
+        @Override
+        protected void operation() throws Exception {
+            FeedParser.parse(new ByteArrayInputStream(feed), "UTF-8", listener);
+        }
+    }
+
+    private static class PlaylistBenchmark extends Benchmark {
+        private final Playlist playlist;
+
+        PlaylistBenchmark(String name, boolean shuffle) {
+            super(name);
+            playlist = new Playlist(shuffle, 1);
+            for (int i = 0; i < PLAYLIST_SIZE; i++) {
+                playlist.add("/data/data/com.mamlambo.imageswidget/files/images/" + i + ".img");
+            }
+        }
+
+        @Override
+        protected void operation() {
+            sink += playlist.next().length();
+        }
+    }
+
+    static File createScratchDir() throws Exception {
+        File dir = File.createTempFile("imageswidget-bench", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IllegalStateException("Failed to create " + dir);
+        }
+        return dir;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
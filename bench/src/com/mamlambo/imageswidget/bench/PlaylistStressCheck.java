@@ -0,0 +1,224 @@
+package com.mamlambo.imageswidget.bench;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.mamlambo.imageswidget.core.Playlist;
+
+/**
+ * Checks {@link Playlist} while its list changes under it.
+ *
+ * First, one thread moves through a shuffled playlist and adds and removes images between steps; no image may come round again while an image present at
+ * the time hasn't been shown in the current pass. Then several threads call next() while others add and remove images, and the list must stay consistent:
+ * no exceptions, no nulls while images remain, nothing returned that was never added, no duplicates, and the same shown-once rule for the one thread moving
+ * through it while images are only added.
+ *
+ * Prints one line per check and exits with status 1 if any failed.
+ *
+ * <pre>
+ * java -cp out com.mamlambo.imageswidget.bench.PlaylistStressCheck
+ * </pre>
+ */
+public class PlaylistStressCheck {
+    private static final int IMAGES = 50;
+    private static final int STEPS = 100000;
+    private static final int READERS = 4;
+    private static final int WRITERS = 2;
+    private static final int CONCURRENT_STEPS = 200000;
+
+    private static boolean failed;
+
+    public static void main(String[] args) throws Exception {
+        for (long seed = 1; seed <= 5; seed++) {
+            checkNoRepeats(seed);
+        }
+        checkConcurrent();
+        checkConcurrentNoRepeats();
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    // one thread, with adds and removes between steps
+    private static void checkNoRepeats(long seed) {
+        Random random = new Random(seed);
+        Playlist playlist = new Playlist(true, seed);
+        HashSet<String> present = new HashSet<String>();
+        int next = 0;
+        for (; next < IMAGES; next++) {
+            playlist.add(path(next));
+            present.add(path(next));
+        }
+
+        PassTracker tracker = new PassTracker();
+        tracker.shown(playlist.current(), present);
+        int changes = 0;
+        for (int step = 0; step < STEPS && tracker.violations == 0; step++) {
+            if (random.nextInt(4) == 0) {
+                changes++;
+                if (random.nextBoolean() || present.size() < 3) {
+                    playlist.add(path(next));
+                    present.add(path(next++));
+                } else {
+                    String[] snapshot = playlist.snapshot();
+                    String path = snapshot[random.nextInt(snapshot.length)];
+                    playlist.remove(path);
+                    present.remove(path);
+                }
+            }
+            tracker.shown(playlist.next(), present);
+        }
+        report("no repeats, seed " + seed, tracker.violations == 0, tracker.passes + " passes, " + changes + " changes, " + tracker.violations
+                + " repeats within a pass");
+    }
+
+    // readers and writers together; checks the list stays consistent
+    private static void checkConcurrent() throws InterruptedException {
+        final Playlist playlist = new Playlist(true, 1);
+        // the first half is never removed, so next() always has something to return
+        for (int i = 0; i < IMAGES; i++) {
+            playlist.add(path(i));
+        }
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final AtomicInteger nulls = new AtomicInteger();
+        final AtomicInteger strays = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[READERS + WRITERS];
+        for (int t = 0; t < threads.length; t++) {
+            final boolean writer = t < WRITERS;
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int step = 0; step < CONCURRENT_STEPS; step++) {
+                            if (writer) {
+                                String path = path(IMAGES / 2 + random.nextInt(IMAGES));
+                                if (random.nextBoolean()) {
+                                    playlist.add(path);
+                                } else {
+                                    playlist.remove(path);
+                                }
+                            } else {
+                                String path = random.nextBoolean() ? playlist.next() : random.nextBoolean() ? playlist.current() : playlist.peekNext();
+                                if (path == null) {
+                                    nulls.incrementAndGet();
+                                } else if (!path.startsWith("/images/")) {
+                                    strays.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        String[] snapshot = playlist.snapshot();
+        HashSet<String> distinct = new HashSet<String>();
+        boolean consistent = true;
+        for (String path : snapshot) {
+            consistent &= distinct.add(path) && playlist.contains(path);
+        }
+        for (int i = 0; i < IMAGES / 2; i++) {
+            consistent &= playlist.contains(path(i));
+        }
+        boolean ok = error.get() == null && nulls.get() == 0 && strays.get() == 0 && consistent;
+        report("concurrent", ok, (error.get() != null ? error.get() + ", " : "") + nulls + " nulls, " + strays + " strays, " + snapshot.length
+                + " images, " + (consistent ? "consistent" : "INCONSISTENT"));
+    }
+
+    // one thread moving through the list while others only add, so anything in a snapshot taken before next() was there when it ran
+    private static void checkConcurrentNoRepeats() throws InterruptedException {
+        final Playlist playlist = new Playlist(true, 2);
+        for (int i = 0; i < IMAGES; i++) {
+            playlist.add(path(i));
+        }
+
+        final AtomicInteger added = new AtomicInteger(IMAGES);
+        final int total = IMAGES * 20;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[WRITERS];
+        for (int t = 0; t < writers.length; t++) {
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    int n;
+                    while ((n = added.getAndIncrement()) < total) {
+                        playlist.add(path(n));
+                        Thread.yield();
+                    }
+                }
+            };
+            writers[t].start();
+        }
+
+        PassTracker tracker = new PassTracker();
+        HashSet<String> present = new HashSet<String>();
+        tracker.shown(playlist.current(), snapshot(playlist, present));
+        start.countDown();
+        for (int step = 0; step < CONCURRENT_STEPS; step++) {
+            snapshot(playlist, present);
+            tracker.shown(playlist.next(), present);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        report("concurrent no repeats", tracker.violations == 0, tracker.passes + " passes, " + playlist.size() + " images, " + tracker.violations
+                + " repeats within a pass");
+    }
+
+    private static HashSet<String> snapshot(Playlist playlist, HashSet<String> present) {
+        present.clear();
+        for (String path : playlist.snapshot()) {
+            present.add(path);
+        }
+        return present;
+    }
+
+    /**
+     * Follows the images shown and counts those that came round again before the pass was over
+     */
+    private static class PassTracker {
+        private final HashSet<String> shown = new HashSet<String>();
+        int passes;
+        int violations;
+
+        void shown(String path, HashSet<String> present) {
+            if (shown.contains(path)) {
+                // a repeat is only allowed once every image present has had its turn
+                if (!shown.containsAll(present)) {
+                    violations++;
+                }
+                passes++;
+                shown.clear();
+            }
+            shown.add(path);
+        }
+    }
+
+    private static String path(int n) {
+        return "/images/" + n + ".img";
+    }
+
+    private static void report(String check, boolean ok, String detail) {
+        failed |= !ok;
+        System.out.println(String.format("%-24s %s  %s", check, detail, ok ? "ok" : "FAILED"));
+    }
+}
@@ -0,0 +1,180 @@
+package com.mamlambo.imageswidget.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.mamlambo.imageswidget.core.Clock;
+
+/**
+ * A clock and a scheduled executor that only move when told to, so hours of refreshes and retries run in moments.
+ *
+ * Tasks run on the thread calling {@link #advanceTo(long)}, one at a time and in deadline order, with the clock set to each task's deadline; after each, the
+ * settle hook runs, for example to wait for downloads the task started on real threads. Tasks may be scheduled from any thread. Cancelled tasks leave the
+ * queue straight away.
+ */
+public class VirtualScheduler extends AbstractExecutorService implements ScheduledExecutorService, Clock {
+    private final Runnable settle;
+
+    // guarded by this
+    private final PriorityQueue<Task> queue = new PriorityQueue<Task>();
+    private long now;
+    private long sequence;
+    private boolean shutdown;
+
+    /**
+     * @param start
+     *            The time to start at, in milliseconds
+     * @param settle
+     *            Run after each task, or null
+     */
+    public VirtualScheduler(long start, Runnable settle) {
+        this.now = start;
+        this.settle = settle;
+    }
+
+    public synchronized long now() {
+        return now;
+    }
+
+    /**
+     * Runs every task due up to time, then leaves the clock at time
+     *
+     * @param time
+     *            The time to move to, in milliseconds
+     * @return the number of tasks run
+     */
+    public int advanceTo(long time) {
+        int run = 0;
+        while (true) {
+            Task task;
+            synchronized (this) {
+                task = queue.peek();
+                if (task == null || task.time > time) {
+                    now = Math.max(now, time);
+                    return run;
+                }
+                queue.poll();
+                now = Math.max(now, task.time);
+            }
+            task.task.run();
+            run++;
+            if (settle != null) {
+                settle.run();
+            }
+        }
+    }
+
+    /**
+     * @return The number of tasks waiting
+     */
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    public synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        Task task = new Task(command, now + Math.max(0, unit.toMillis(delay)), sequence++);
+        if (!shutdown) {
+            queue.add(task);
+        }
+        return task;
+    }
+
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> dropped = new ArrayList<Runnable>(queue.size());
+        for (Task task : queue) {
+            dropped.add(task.task);
+        }
+        queue.clear();
+        return dropped;
+    }
+
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    public synchronized boolean isTerminated() {
+        return shutdown && queue.isEmpty();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+
+    private synchronized boolean remove(Task task) {
+        return queue.remove(task);
+    }
+
+    private final class Task implements ScheduledFuture<Object> {
+        final Runnable task;
+        final long time;
+        final long order;
+        boolean cancelled;
+
+        Task(Runnable task, long time, long order) {
+            this.task = task;
+            this.time = time;
+            this.order = order;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - now(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            Task task = (Task) other;
+            if (time != task.time) {
+                return time < task.time ? -1 : 1;
+            }
+            return order < task.order ? -1 : order == task.order ? 0 : 1;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancelled = remove(this);
+            return cancelled;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            throw new UnsupportedOperationException();
+        }
+
+        public Object get() {
+            throw new UnsupportedOperationException();
+        }
+
+        public Object get(long timeout, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.mamlambo.imageswidget.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decides which widgets to update on each tick of a single shared alarm.
+ *
+ * Rather than one repeating alarm per widget, every widget rides on one tick as long as the fastest widget's period. A widget is updated on the first tick
+ * at or after it's due, never before, so slower widgets share the wakeups of faster ones without updating more often than they were set to. Its next update
+ * is due a period after this one was due, so a tick that arrives late doesn't push every later update back. Ticks that arrive while the screen is off
+ * update nothing; widgets that came due in the meantime update once on the next tick after the screen comes on, instead of catching up on every update
+ * they missed.
+ *
+ * Holds no Android state, so it can be driven by a fake clock.
+ */
+public class AlarmPlanner {
+
+    private final Clock clock;
+    private final long minPeriod;
+
+    // guarded by this
+    private final HashMap<Integer, Widget> widgets = new HashMap<Integer, Widget>();
+    private boolean screenOn = true;
+    private long ticks;
+    private long skippedTicks;
+    private long updates;
+
+    /**
+     * @param clock
+     *            A monotonic clock, such as {@code SystemClock.elapsedRealtime()}
+     * @param minPeriod
+     *            Shortest period any widget may update at, in milliseconds
+     */
+    public AlarmPlanner(Clock clock, long minPeriod) {
+        this.clock = clock;
+        this.minPeriod = minPeriod;
+    }
+
+    /**
+     * Sets how often a widget updates, counting from now; the caller is expected to have just updated it
+     *
+     * @param appWidgetId
+     *            The widget
+     * @param periodMillis
+     *            Time between updates; raised to the minimum period if shorter
+     */
+    public synchronized void setPeriod(int appWidgetId, long periodMillis) {
+        long period = Math.max(periodMillis, minPeriod);
+        widgets.put(appWidgetId, new Widget(period, clock.now() + period));
+    }
+
+    /**
+     * Stops updating a widget
+     *
+     * @param appWidgetId
+     *            The widget
+     */
+    public synchronized void remove(int appWidgetId) {
+        widgets.remove(appWidgetId);
+    }
+
+    /**
+     * @param on
+     *            Whether the screen is on; ticks are skipped while it's off
+     */
+    public synchronized void setScreenOn(boolean on) {
+        screenOn = on;
+    }
+
+    /**
+     * @return true if no widget needs updating, so the alarm can be cancelled
+     */
+    public synchronized boolean isEmpty() {
+        return widgets.isEmpty();
+    }
+
+    /**
+     * @return The interval the shared alarm should repeat at, in milliseconds; 0 if there are no widgets
+     */
+    public synchronized long getTick() {
+        // not rounded to a batched interval: a shorter tick would update a widget on its own before its period was up
+        long tick = 0;
+        for (Widget widget : widgets.values()) {
+            if (tick == 0 || widget.period < tick) {
+                tick = widget.period;
+            }
+        }
+        return tick;
+    }
+
+    /**
+     * Called when the shared alarm fires
+     *
+     * @return The widgets to update on this tick, possibly none
+     */
+    public synchronized int[] onTick() {
+        ticks++;
+        if (!screenOn) {
+            skippedTicks++;
+            return new int[0];
+        }
+
+        long now = clock.now();
+
+        int count = 0;
+        int[] due = new int[widgets.size()];
+        Iterator<Map.Entry<Integer, Widget>> iterator = widgets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Widget> entry = iterator.next();
+            Widget widget = entry.getValue();
+            if (widget.nextDue <= now) {
+                due[count++] = entry.getKey();
+                // count from when it was due, unless it's fallen more than a period behind
+                widget.nextDue += widget.period;
+                if (widget.nextDue <= now) {
+                    widget.nextDue = now + widget.period;
+                }
+            }
+        }
+        updates += count;
+
+        int[] result = new int[count];
+        System.arraycopy(due, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * @return The number of ticks received
+     */
+    public synchronized long getTickCount() {
+        return ticks;
+    }
+
+    /**
+     * @return The number of ticks ignored because the screen was off
+     */
+    public synchronized long getSkippedTickCount() {
+        return skippedTicks;
+    }
+
+    /**
+     * @return The number of widget updates handed out
+     */
+    public synchronized long getUpdateCount() {
+        return updates;
+    }
+
+    private static final class Widget {
+        final long period;
+        long nextDue;
+
+        Widget(long period, long nextDue) {
+            this.period = period;
+            this.nextDue = nextDue;
+        }
+    }
+}
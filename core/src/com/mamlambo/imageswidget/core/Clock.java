@@ -0,0 +1,21 @@
+package com.mamlambo.imageswidget.core;
+
+/**
+ * Source of the current time, so schedules can be driven by a fake clock off the device
+ */
+public interface Clock {
+
+    /**
+     * Wall-clock time, from {@link System#currentTimeMillis()}
+     */
+    Clock WALL = new Clock() {
+        public long now() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return the current time in milliseconds. Which epoch depends on the clock; only differences between readings of the same clock are meaningful.
+     */
+    long now();
+}
@@ -0,0 +1,339 @@
+package com.mamlambo.imageswidget.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A content-addressed store for downloaded images, bounded by a byte quota.
+ *
+ * Files are named after the SHA-1 of their source URL, so every widget showing the same image shares one copy. Entries are evicted least recently used first
+ * once the quota is exceeded. The cache's contents and access order are kept in an append-only journal, which lets it reopen after a process restart without
+ * scanning the directory. The journal is compacted when it grows well beyond the number of live entries.
+ */
+public class DiskCache {
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TEMP = "journal.tmp";
+    private static final String FILE_SUFFIX = ".img";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    // compact once the journal holds this many more records than entries
+    private static final int REDUNDANT_RECORD_LIMIT = 500;
+
+    /**
+     * Notified when an entry is evicted to stay within the quota
+     */
+    public interface EvictionListener {
+        void onEvicted(File file);
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(32, 0.75f, true);
+    private EvictionListener listener;
+    private BufferedWriter journal;
+    private long bytes;
+    private int journalRecords;
+
+    /**
+     * Opens, or creates, a cache in directory
+     *
+     * @param directory
+     *            Directory holding the cache files and journal. Created if missing.
+     * @param maxBytes
+     *            Quota for the cached files
+     * @throws IOException
+     *             if the directory or journal can't be created
+     */
+    public DiskCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create cache directory: " + directory);
+        }
+
+        File journalFile = new File(directory, JOURNAL);
+        if (journalFile.exists()) {
+            readJournal(journalFile);
+        }
+        journal = new BufferedWriter(new FileWriter(journalFile, true));
+    }
+
+    /**
+     * Sets who to tell about evictions
+     *
+     * @param listener
+     *            The listener, or null
+     */
+    public synchronized void setEvictionListener(EvictionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Computes the content-addressed key for a URL
+     *
+     * @param url
+     *            Source URL of the image
+     * @return lowercase hex SHA-1 of the URL
+     */
+    public static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Where the image for url is, or will be, stored. Doesn't touch the journal.
+     *
+     * @param url
+     *            Source URL of the image
+     * @return the cache file for url
+     */
+    public File getFile(String url) {
+        return fileForKey(keyFor(url));
+    }
+
+    /**
+     * Looks up a cached image, marking it as recently used
+     *
+     * @param url
+     *            Source URL of the image
+     * @return the cached file, or null if it isn't cached
+     */
+    public synchronized File get(String url) {
+        String key = keyFor(url);
+        if (entries.get(key) == null) {
+            return null;
+        }
+
+        File file = fileForKey(key);
+        if (!file.exists()) {
+            // deleted behind our back
+            bytes -= entries.remove(key);
+            appendRecord(REMOVE, key, -1);
+            return null;
+        }
+        appendRecord(READ, key, -1);
+        return file;
+    }
+
+    /**
+     * Marks a cached file as recently used, for example because it's being shown. Does nothing if the file isn't in the cache.
+     *
+     * @param file
+     *            A file returned by {@link #get(String)} or {@link #getFile(String)}
+     */
+    public synchronized void touch(File file) {
+        String name = file.getName();
+        if (!name.endsWith(FILE_SUFFIX) || !directory.equals(file.getParentFile())) {
+            return;
+        }
+        String key = name.substring(0, name.length() - FILE_SUFFIX.length());
+        if (entries.get(key) != null) {
+            appendRecord(READ, key, -1);
+        }
+    }
+
+    /**
+     * Records that the file for url has been written, then evicts old entries if the cache is over quota
+     *
+     * @param url
+     *            Source URL of the image
+     * @param size
+     *            Size of the written file in bytes
+     */
+    public synchronized void commit(String url, long size) {
+        String key = keyFor(url);
+        Long previous = entries.put(key, size);
+        if (previous != null) {
+            bytes -= previous;
+        }
+        bytes += size;
+        appendRecord(CLEAN, key, size);
+        flushJournal();
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Deletes a cached image
+     *
+     * @param url
+     *            Source URL of the image
+     */
+    public synchronized void remove(String url) {
+        String key = keyFor(url);
+        Long size = entries.remove(key);
+        if (size != null) {
+            bytes -= size;
+            fileForKey(key).delete();
+            appendRecord(REMOVE, key, -1);
+            flushJournal();
+        }
+    }
+
+    /**
+     * @return The bytes currently used by cached files
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+
+    /**
+     * Flushes and closes the journal
+     */
+    public synchronized void close() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            // nothing more we can do
+        }
+    }
+
+    private File fileForKey(String key) {
+        return new File(directory, key + FILE_SUFFIX);
+    }
+
+    private void trimToSize(long target) {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (bytes > target && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            String key = entry.getKey();
+            File file = fileForKey(key);
+            bytes -= entry.getValue();
+            iterator.remove();
+            file.delete();
+            appendRecord(REMOVE, key, -1);
+            if (listener != null) {
+                listener.onEvicted(file);
+            }
+        }
+        flushJournal();
+    }
+
+    private void readJournal(File journalFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                journalRecords++;
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    // torn write at the end of the journal
+                    continue;
+                }
+                String key = parts[1];
+                if (CLEAN.equals(parts[0]) && parts.length == 3) {
+                    long size;
+                    try {
+                        size = Long.parseLong(parts[2]);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    Long previous = entries.put(key, size);
+                    if (previous != null) {
+                        bytes -= previous;
+                    }
+                    bytes += size;
+                } else if (READ.equals(parts[0])) {
+                    entries.get(key);
+                } else if (REMOVE.equals(parts[0])) {
+                    Long previous = entries.remove(key);
+                    if (previous != null) {
+                        bytes -= previous;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (journalRecords - entries.size() > REDUNDANT_RECORD_LIMIT) {
+            rebuildJournal();
+        }
+    }
+
+    private void appendRecord(String op, String key, long size) {
+        try {
+            journal.write(op);
+            journal.write(' ');
+            journal.write(key);
+            if (size >= 0) {
+                journal.write(' ');
+                journal.write(Long.toString(size));
+            }
+            journal.write('\n');
+        } catch (IOException e) {
+            // the journal is only a hint for the next startup; the cache itself stays consistent
+        }
+
+        if (++journalRecords - entries.size() > REDUNDANT_RECORD_LIMIT) {
+            rebuildJournal();
+        }
+    }
+
+    private void flushJournal() {
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            // see appendRecord
+        }
+    }
+
+    private void rebuildJournal() {
+        File journalFile = new File(directory, JOURNAL);
+        File tempFile = new File(directory, JOURNAL_TEMP);
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+
+            // entries iterate least recently used first, so their order is the access order
+            BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
+            try {
+                for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                    writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tempFile.renameTo(journalFile)) {
+                throw new IOException("Failed to replace journal");
+            }
+            journalRecords = entries.size();
+        } catch (IOException e) {
+            tempFile.delete();
+        } finally {
+            try {
+                if (journal != null) {
+                    journal = new BufferedWriter(new FileWriter(journalFile, true));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to reopen journal", e);
+            }
+        }
+    }
+}
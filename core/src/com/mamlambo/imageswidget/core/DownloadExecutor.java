@@ -0,0 +1,243 @@
+package com.mamlambo.imageswidget.core;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded executor shared by every widget for downloading images.
+ *
+ * Limits the total number of concurrent downloads, the number of concurrent downloads against any one host and the number of downloads waiting to run. When the
+ * waiting queue is full, submitters are held back until room frees up or their wait times out, at which point the task is rejected.
+ */
+public class DownloadExecutor {
+    private final ThreadPoolExecutor executor;
+    private final int maxPerHost;
+    private final int queueCapacity;
+
+    // per-host bookkeeping, guarded by itself
+    private final HashMap<String, HostQueue> hosts = new HashMap<String, HostQueue>();
+
+    // guards the capacity wait
+    private final Object capacityLock = new Object();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile boolean shutdown = false;
+
+    /**
+     * Creates a new executor and its worker threads
+     *
+     * @param parallelism
+     *            Maximum number of downloads running at once
+     * @param maxPerHost
+     *            Maximum number of downloads running at once against a single host
+     * @param queueCapacity
+     *            Maximum number of downloads accepted but not yet running
+     */
+    public DownloadExecutor(int parallelism, int maxPerHost, int queueCapacity) {
+        this.maxPerHost = maxPerHost;
+        this.queueCapacity = queueCapacity;
+
+        // the real bound is enforced by submit(), so the executor's own queue never rejects
+        executor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ImagesWidgetDownload-" + count.incrementAndGet());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Queues a download against a host, waiting for queue space if necessary
+     *
+     * @param host
+     *            The host the task will talk to; used for the per-host limit
+     * @param task
+     *            The download to run
+     * @param maxWaitMillis
+     *            How long to wait for queue space before giving up
+     * @return true if the task was accepted, false if it was rejected
+     */
+    public boolean submit(String host, Runnable task, long maxWaitMillis) {
+        if (!reserveSlot(maxWaitMillis)) {
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        Runnable ready = null;
+        synchronized (hosts) {
+            HostQueue hostQueue = hosts.get(host);
+            if (hostQueue == null) {
+                hostQueue = new HostQueue();
+                hosts.put(host, hostQueue);
+            }
+            if (hostQueue.running < maxPerHost) {
+                hostQueue.running++;
+                ready = wrap(host, task);
+            } else {
+                hostQueue.pending.add(task);
+            }
+        }
+
+        if (ready != null) {
+            executor.execute(ready);
+        }
+        return true;
+    }
+
+    /**
+     * Changes the number of downloads allowed to run at once. Downloads already running are not interrupted.
+     *
+     * @param parallelism
+     *            The new limit, at least 1
+     */
+    public void setParallelism(int parallelism) {
+        parallelism = Math.max(1, parallelism);
+        // keep core <= max at every step
+        if (parallelism > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(parallelism);
+            executor.setCorePoolSize(parallelism);
+        } else {
+            executor.setCorePoolSize(parallelism);
+            executor.setMaximumPoolSize(parallelism);
+        }
+    }
+
+    /**
+     * @return The number of downloads allowed to run at once
+     */
+    public int getParallelism() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return The number of downloads accepted but not yet started
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * @return The number of downloads currently running
+     */
+    public int getActiveDownloads() {
+        return active.get();
+    }
+
+    /**
+     * @return The number of downloads turned away since this executor was created
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Stops accepting work and drops anything that hasn't started. Running downloads are allowed to finish, and waited for up to timeoutMillis; they
+     * aren't interrupted, so none is cut off halfway through writing its file.
+     *
+     * @param timeoutMillis
+     *            The longest to wait for running downloads
+     * @return true if every download finished in time
+     */
+    public boolean shutdown(long timeoutMillis) {
+        shutdown = true;
+        synchronized (hosts) {
+            hosts.clear();
+        }
+        executor.shutdown();
+        executor.getQueue().clear();
+        synchronized (capacityLock) {
+            capacityLock.notifyAll();
+        }
+
+        try {
+            return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean reserveSlot(long maxWaitMillis) {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        synchronized (capacityLock) {
+            while (!shutdown && queued.get() >= queueCapacity) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    capacityLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (shutdown) {
+                return false;
+            }
+            queued.incrementAndGet();
+            return true;
+        }
+    }
+
+    private void releaseSlot() {
+        synchronized (capacityLock) {
+            queued.decrementAndGet();
+            capacityLock.notify();
+        }
+    }
+
+    private Runnable wrap(final String host, final Runnable task) {
+        return new Runnable() {
+            public void run() {
+                // counted as active before it stops counting as queued, so a started download is never missing from both
+                active.incrementAndGet();
+                releaseSlot();
+                try {
+                    task.run();
+                } finally {
+                    active.decrementAndGet();
+                    onHostTaskDone(host);
+                }
+            }
+        };
+    }
+
+    private void onHostTaskDone(String host) {
+        Runnable next = null;
+        synchronized (hosts) {
+            HostQueue hostQueue = hosts.get(host);
+            if (hostQueue == null) {
+                return;
+            }
+            if (!hostQueue.pending.isEmpty() && !shutdown) {
+                next = wrap(host, hostQueue.pending.removeFirst());
+            } else {
+                hostQueue.running--;
+                if (hostQueue.running == 0) {
+                    hosts.remove(host);
+                }
+            }
+        }
+
+        if (next != null) {
+            executor.execute(next);
+        }
+    }
+
+    private static class HostQueue {
+        int running;
+        LinkedList<Runnable> pending = new LinkedList<Runnable>();
+    }
+}
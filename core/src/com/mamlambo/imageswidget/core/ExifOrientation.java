@@ -0,0 +1,206 @@
+package com.mamlambo.imageswidget.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the orientation a camera recorded in a JPEG's EXIF data.
+ *
+ * Only the markers in front of the image data are read, and of those only the first IFD of the EXIF segment, so this is cheap enough to run on every
+ * download. The platform's {@code ExifInterface} only arrived in API 5.
+ */
+public class ExifOrientation {
+    /** Stored the way it should be shown, or no orientation recorded */
+    public static final int NORMAL = 1;
+    /** Mirrored left to right */
+    public static final int FLIP_HORIZONTAL = 2;
+    /** Upside down */
+    public static final int ROTATE_180 = 3;
+    /** Mirrored top to bottom */
+    public static final int FLIP_VERTICAL = 4;
+    /** Mirrored along the top-left to bottom-right diagonal */
+    public static final int TRANSPOSE = 5;
+    /** Needs turning 90 degrees clockwise */
+    public static final int ROTATE_90 = 6;
+    /** Mirrored along the top-right to bottom-left diagonal */
+    public static final int TRANSVERSE = 7;
+    /** Needs turning 90 degrees counter-clockwise */
+    public static final int ROTATE_270 = 8;
+
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_APP1 = 0xe1;
+    private static final int MARKER_SOS = 0xda;
+    private static final int MARKER_EOI = 0xd9;
+
+    private static final int EXIF_HEADER = 0x45786966; // "Exif"
+    private static final int TIFF_LITTLE_ENDIAN = 0x4949; // "II"
+    private static final int TIFF_BIG_ENDIAN = 0x4d4d; // "MM"
+    private static final int TAG_ORIENTATION = 0x0112;
+
+    // the EXIF segment is near the start; past this the file isn't worth reading further
+    private static final int MAX_HEADER_BYTES = 128 * 1024;
+
+    private ExifOrientation() {
+    }
+
+    /**
+     * @param file
+     *            An image file
+     * @return One of the orientation constants; {@link #NORMAL} if the file isn't a JPEG or doesn't record one
+     */
+    public static int read(File file) {
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                return read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return NORMAL;
+        }
+    }
+
+    /**
+     * @param stream
+     *            The start of an image; read up to the image data at most, and not closed
+     * @return One of the orientation constants; {@link #NORMAL} if the stream isn't a JPEG or doesn't record one
+     * @throws IOException
+     *             if the stream can't be read
+     */
+    public static int read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            if (in.readUnsignedByte() != 0xff || in.readUnsignedByte() != MARKER_SOI) {
+                return NORMAL;
+            }
+
+            int offset = 2;
+            while (offset < MAX_HEADER_BYTES) {
+                if (in.readUnsignedByte() != 0xff) {
+                    return NORMAL;
+                }
+                int marker = in.readUnsignedByte();
+                while (marker == 0xff) {
+                    // fill bytes
+                    marker = in.readUnsignedByte();
+                }
+                if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                    return NORMAL;
+                }
+
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return NORMAL;
+                }
+                if (marker == MARKER_APP1 && length >= 6) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    if (readInt(segment, 0, true) == EXIF_HEADER) {
+                        return readTiff(segment, 6);
+                    }
+                } else {
+                    skipFully(in, length);
+                }
+                offset += 4 + length;
+            }
+        } catch (EOFException e) {
+            // truncated before any orientation was found
+        }
+        return NORMAL;
+    }
+
+    /**
+     * @param orientation
+     *            One of the orientation constants
+     * @return How far the image has to be turned clockwise, in degrees, before any mirroring
+     */
+    public static int getRotation(int orientation) {
+        switch (orientation) {
+        case ROTATE_180:
+        case FLIP_VERTICAL:
+            return 180;
+        case TRANSPOSE:
+        case ROTATE_90:
+            return 90;
+        case TRANSVERSE:
+        case ROTATE_270:
+            return 270;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * @param orientation
+     *            One of the orientation constants
+     * @return true if the image has to be mirrored left to right after turning it
+     */
+    public static boolean isMirrored(int orientation) {
+        return orientation == FLIP_HORIZONTAL || orientation == FLIP_VERTICAL || orientation == TRANSPOSE || orientation == TRANSVERSE;
+    }
+
+    // the TIFF structure that makes up the rest of the EXIF segment, starting at start
+    private static int readTiff(byte[] segment, int start) {
+        if (segment.length < start + 8) {
+            return NORMAL;
+        }
+        int byteOrder = readShort(segment, start, true);
+        boolean bigEndian;
+        if (byteOrder == TIFF_BIG_ENDIAN) {
+            bigEndian = true;
+        } else if (byteOrder == TIFF_LITTLE_ENDIAN) {
+            bigEndian = false;
+        } else {
+            return NORMAL;
+        }
+
+        // offsets are relative to the TIFF header
+        int ifd = start + readInt(segment, start + 4, bigEndian);
+        if (ifd < start || ifd + 2 > segment.length) {
+            return NORMAL;
+        }
+        int entries = readShort(segment, ifd, bigEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > segment.length) {
+                break;
+            }
+            if (readShort(segment, entry, bigEndian) == TAG_ORIENTATION) {
+                // a single SHORT, stored in the first half of the value field
+                int orientation = readShort(segment, entry + 8, bigEndian);
+                return orientation >= NORMAL && orientation <= ROTATE_270 ? orientation : NORMAL;
+            }
+        }
+        return NORMAL;
+    }
+
+    private static int readShort(byte[] data, int offset, boolean bigEndian) {
+        int a = data[offset] & 0xff;
+        int b = data[offset + 1] & 0xff;
+        return bigEndian ? (a << 8) | b : (b << 8) | a;
+    }
+
+    private static int readInt(byte[] data, int offset, boolean bigEndian) {
+        int high = readShort(data, offset, bigEndian);
+        int low = readShort(data, offset + 2, bigEndian);
+        return bigEndian ? (high << 16) | low : (low << 16) | high;
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                // skipBytes gives up at the end of the stream
+                in.readUnsignedByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.mamlambo.imageswidget.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Streams image enclosures out of a feed as they are parsed.
+ *
+ * Understands Atom {@code <link rel="enclosure">}, RSS 2.0 {@code <enclosure>} and Media RSS {@code <media:content>} elements. The parser factory is created
+ * once and each thread keeps its own parser, so a refresh allocates little beyond the strings it hands to the listener. Enclosures are reported as soon as
+ * they are seen, so downloads can start while the rest of the feed is still arriving.
+ */
+public class FeedParser {
+    private static final String NS_MEDIA = "http://search.yahoo.com/mrss/";
+
+    private static final String TAG_LINK = "link";
+    private static final String TAG_ENCLOSURE = "enclosure";
+    private static final String TAG_CONTENT = "content";
+
+    private static final String ATTR_REL = "rel";
+    private static final String ATTR_TYPE = "type";
+    private static final String ATTR_HREF = "href";
+    private static final String ATTR_URL = "url";
+    private static final String ATTR_MEDIUM = "medium";
+
+    private static final String REL_ENCLOSURE = "enclosure";
+    private static final String MEDIUM_IMAGE = "image";
+    private static final String TYPE_IMAGE_PREFIX = "image/";
+
+    /**
+     * Receives enclosures as the feed is parsed
+     */
+    public interface EnclosureListener {
+        /**
+         * Called for every image enclosure, in document order
+         *
+         * @param url
+         *            Absolute URL of the image
+         * @param type
+         *            MIME type of the image, or null if the feed doesn't say
+         * @return true to keep parsing, false to stop
+         */
+        boolean onEnclosure(String url, String type);
+    }
+
+    private static XmlPullParserFactory factory;
+
+    private static final ThreadLocal<XmlPullParser> parsers = new ThreadLocal<XmlPullParser>();
+
+    private FeedParser() {
+    }
+
+    /**
+     * Parses a feed, reporting every image enclosure to listener
+     *
+     * @param in
+     *            The feed document; not closed
+     * @param encoding
+     *            Character encoding of the document, or null to detect it
+     * @param listener
+     *            Receives the enclosures
+     * @return the number of enclosures reported
+     * @throws XmlPullParserException
+     *             if the document is malformed
+     * @throws IOException
+     *             if reading the document fails
+     */
+    public static int parse(InputStream in, String encoding, EnclosureListener listener) throws XmlPullParserException, IOException {
+        XmlPullParser parser = obtainParser();
+        parser.setInput(in, encoding);
+
+        int found = 0;
+        int parserEvent = parser.getEventType();
+        while (parserEvent != XmlPullParser.END_DOCUMENT) {
+            if (parserEvent == XmlPullParser.START_TAG) {
+                String url = enclosureUrl(parser);
+                if (url != null) {
+                    found++;
+                    if (!listener.onEnclosure(url, parser.getAttributeValue(null, ATTR_TYPE))) {
+                        break;
+                    }
+                }
+            }
+            parserEvent = parser.next();
+        }
+        return found;
+    }
+
+    /**
+     * Checks whether the current start tag is an image enclosure
+     *
+     * @return the image URL if it is, otherwise null
+     */
+    private static String enclosureUrl(XmlPullParser parser) {
+        String tag = parser.getName();
+        String type = parser.getAttributeValue(null, ATTR_TYPE);
+
+        if (TAG_LINK.equals(tag)) {
+            // Atom: <link rel="enclosure" type="image/jpeg" href="..."/>
+            if (REL_ENCLOSURE.equals(parser.getAttributeValue(null, ATTR_REL)) && isImageType(type)) {
+                return parser.getAttributeValue(null, ATTR_HREF);
+            }
+        } else if (TAG_ENCLOSURE.equals(tag)) {
+            // RSS 2.0: <enclosure url="..." type="image/jpeg" length="..."/>
+            if (isImageType(type)) {
+                return parser.getAttributeValue(null, ATTR_URL);
+            }
+        } else if (TAG_CONTENT.equals(tag) && NS_MEDIA.equals(parser.getNamespace())) {
+            // Media RSS: <media:content url="..." type="image/jpeg" medium="image"/>
+            if (isImageType(type) || (type == null && MEDIUM_IMAGE.equals(parser.getAttributeValue(null, ATTR_MEDIUM)))) {
+                return parser.getAttributeValue(null, ATTR_URL);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isImageType(String type) {
+        return type != null && type.startsWith(TYPE_IMAGE_PREFIX);
+    }
+
+    private static XmlPullParser obtainParser() throws XmlPullParserException {
+        XmlPullParser parser = parsers.get();
+        if (parser == null) {
+            parser = getFactory().newPullParser();
+            parsers.set(parser);
+        }
+        return parser;
+    }
+
+    private static synchronized XmlPullParserFactory getFactory() throws XmlPullParserException {
+        if (factory == null) {
+            factory = XmlPullParserFactory.newInstance();
+            // needed to tell media:content apart from other content elements
+            factory.setNamespaceAware(true);
+        }
+        return factory;
+    }
+}
@@ -0,0 +1,121 @@
+package com.mamlambo.imageswidget.core;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The latest parsed contents of every feed at least one widget follows, shared by all of its widgets.
+ *
+ * Feeds are reference counted: a feed is kept while a widget holds it and forgotten when the last one lets go. A widget that starts following a feed other
+ * widgets already show is filled from the feed's last result instead of fetching and parsing it again, so the network and parsing work depends on the number
+ * of distinct feeds rather than the number of widgets. {@link RefreshScheduler} makes sure only one fetch per feed is in flight.
+ */
+public class FeedRegistry {
+
+    /**
+     * What a feed contained the last time it was parsed in full
+     */
+    public static class Result {
+        /**
+         * Image URLs in the order they appear in the feed
+         */
+        public final String[] imageUrls;
+
+        /**
+         * When the feed was last fetched, in milliseconds since the epoch
+         */
+        public final long fetched;
+
+        Result(String[] imageUrls, long fetched) {
+            this.imageUrls = imageUrls;
+            this.fetched = fetched;
+        }
+    }
+
+    private static class Feed {
+        int references;
+        Result result;
+    }
+
+    // guarded by this
+    private final HashMap<String, Feed> feeds = new HashMap<String, Feed>();
+
+    /**
+     * Adds a reference to a feed
+     *
+     * @param feedUrl
+     *            The feed
+     * @return The feed's last result, or null if it hasn't been parsed since it was first referenced
+     */
+    public synchronized Result retain(String feedUrl) {
+        Feed feed = feeds.get(feedUrl);
+        if (feed == null) {
+            feed = new Feed();
+            feeds.put(feedUrl, feed);
+        }
+        feed.references++;
+        return feed.result;
+    }
+
+    /**
+     * Drops a reference to a feed, forgetting its result once nothing refers to it
+     *
+     * @param feedUrl
+     *            The feed
+     */
+    public synchronized void release(String feedUrl) {
+        Feed feed = feeds.get(feedUrl);
+        if (feed != null && --feed.references <= 0) {
+            feeds.remove(feedUrl);
+        }
+    }
+
+    /**
+     * Replaces a feed's result after it was parsed in full. Ignored if nothing refers to the feed any more.
+     *
+     * @param feedUrl
+     *            The feed
+     * @param imageUrls
+     *            Image URLs in feed order
+     * @param fetched
+     *            When the feed was fetched, in milliseconds since the epoch
+     */
+    public synchronized void publish(String feedUrl, List<String> imageUrls, long fetched) {
+        Feed feed = feeds.get(feedUrl);
+        if (feed != null) {
+            feed.result = new Result(imageUrls.toArray(new String[imageUrls.size()]), fetched);
+        }
+    }
+
+    /**
+     * Records that a feed was found unchanged, keeping its result
+     *
+     * @param feedUrl
+     *            The feed
+     * @param fetched
+     *            When the feed was fetched, in milliseconds since the epoch
+     */
+    public synchronized void unchanged(String feedUrl, long fetched) {
+        Feed feed = feeds.get(feedUrl);
+        if (feed != null && feed.result != null) {
+            feed.result = new Result(feed.result.imageUrls, fetched);
+        }
+    }
+
+    /**
+     * @param feedUrl
+     *            The feed
+     * @return The feed's last result, or null
+     */
+    public synchronized Result get(String feedUrl) {
+        Feed feed = feeds.get(feedUrl);
+        return feed != null ? feed.result : null;
+    }
+
+    /**
+     * @return The number of distinct feeds referenced
+     */
+    public synchronized int getFeedCount() {
+        return feeds.size();
+    }
+}
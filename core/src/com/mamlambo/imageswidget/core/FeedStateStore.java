@@ -0,0 +1,51 @@
+package com.mamlambo.imageswidget.core;
+
+/**
+ * Persists the HTTP cache validators (ETag and Last-Modified) last seen for each feed, so a refresh can ask the server whether anything changed, along with
+ * the images the feed listed, so the engine can tell after a restart whether its widgets still hold all of them
+ */
+public interface FeedStateStore {
+
+    /**
+     * @param feedUrl
+     *            The feed
+     * @return The ETag of the last complete response, or null
+     */
+    String getETag(String feedUrl);
+
+    /**
+     * @param feedUrl
+     *            The feed
+     * @return The Last-Modified date of the last complete response, or null
+     */
+    String getLastModified(String feedUrl);
+
+    /**
+     * @param feedUrl
+     *            The feed
+     * @return The image URLs the last complete response listed, in feed order, or null
+     */
+    String[] getImageUrls(String feedUrl);
+
+    /**
+     * Stores the validators from a response that has been handled in full, and the images it listed
+     *
+     * @param feedUrl
+     *            The feed
+     * @param etag
+     *            The ETag header, or null
+     * @param lastModified
+     *            The Last-Modified header, or null
+     * @param imageUrls
+     *            The image URLs the response listed, in feed order
+     */
+    void store(String feedUrl, String etag, String lastModified, String[] imageUrls);
+
+    /**
+     * Forgets the validators and images for a feed
+     *
+     * @param feedUrl
+     *            The feed
+     */
+    void clear(String feedUrl);
+}
@@ -0,0 +1,139 @@
+package com.mamlambo.imageswidget.core;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * A circuit breaker per host: stops sending requests to a host that keeps failing, for a cool-down that doubles each time it fails again.
+ *
+ * A host starts out closed, and every request is allowed. After a run of consecutive failures it opens, and nothing is allowed until the cool-down has
+ * passed. It's then half open: a single trial request is let through, which either closes it again or reopens it for twice as long. A random part of each
+ * cool-down keeps hosts that failed together from being retried together.
+ */
+public class HostBreaker {
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final Clock clock;
+    private final int failureThreshold;
+    private final long minCoolDown;
+    private final long maxCoolDown;
+    private final Random random = new Random();
+
+    // only hosts that have failed since their last success, guarded by this
+    private final HashMap<String, Host> hosts = new HashMap<String, Host>();
+
+    private static class Host {
+        int state = CLOSED;
+        int failures;
+        int opened;
+        long openUntil;
+        boolean trialRunning;
+    }
+
+    /**
+     * @param clock
+     *            Time source for the cool-downs
+     * @param failureThreshold
+     *            Consecutive failures that open the breaker
+     * @param minCoolDown
+     *            First cool-down, in milliseconds
+     * @param maxCoolDown
+     *            Longest cool-down, in milliseconds
+     */
+    public HostBreaker(Clock clock, int failureThreshold, long minCoolDown, long maxCoolDown) {
+        this.clock = clock;
+        this.failureThreshold = failureThreshold;
+        this.minCoolDown = minCoolDown;
+        this.maxCoolDown = maxCoolDown;
+    }
+
+    /**
+     * Asks whether a request to host may be made now. A true answer while the host is half open makes the request its trial, and it must be followed by
+     * {@link #success(String)}, {@link #failure(String)} or {@link #release(String)}.
+     *
+     * @param host
+     *            The host
+     * @return true if the request may go ahead
+     */
+    public synchronized boolean allow(String host) {
+        Host entry = hosts.get(host);
+        if (entry == null || entry.state == CLOSED) {
+            return true;
+        }
+        if (entry.state == OPEN) {
+            if (clock.now() < entry.openUntil) {
+                return false;
+            }
+            entry.state = HALF_OPEN;
+        }
+        if (entry.trialRunning) {
+            return false;
+        }
+        entry.trialRunning = true;
+        return true;
+    }
+
+    /**
+     * Records a request that went through, closing the breaker
+     *
+     * @param host
+     *            The host
+     * @return true if the host had been failing, so requests held back from it can be retried
+     */
+    public synchronized boolean success(String host) {
+        return hosts.remove(host) != null;
+    }
+
+    /**
+     * Records a request that failed because of the host or the network
+     *
+     * @param host
+     *            The host
+     * @return How long the breaker is now open for, in milliseconds, if this failure opened it; 0 otherwise
+     */
+    public synchronized long failure(String host) {
+        Host entry = hosts.get(host);
+        if (entry == null) {
+            entry = new Host();
+            hosts.put(host, entry);
+        }
+        entry.trialRunning = false;
+        entry.failures++;
+        if (entry.state == HALF_OPEN || (entry.state == CLOSED && entry.failures >= failureThreshold)) {
+            long coolDown = Math.min(maxCoolDown, minCoolDown << Math.min(entry.opened, 20));
+            // somewhere between half and all of it
+            coolDown -= (long) (random.nextDouble() * coolDown / 2);
+            entry.opened++;
+            entry.state = OPEN;
+            entry.openUntil = clock.now() + coolDown;
+            return coolDown;
+        }
+        return 0;
+    }
+
+    /**
+     * Records a request that ended without saying anything about the host, for example one that failed on a bad response. If it was the trial, the next
+     * request becomes the trial instead; otherwise a trial would stay running forever and nothing would be let through to the host again.
+     *
+     * @param host
+     *            The host
+     */
+    public synchronized void release(String host) {
+        Host entry = hosts.get(host);
+        if (entry != null) {
+            entry.trialRunning = false;
+        }
+    }
+
+    /**
+     * @param host
+     *            The host
+     * @return true if requests to host are being held back
+     */
+    public synchronized boolean isOpen(String host) {
+        Host entry = hosts.get(host);
+        return entry != null && entry.state != CLOSED;
+    }
+}
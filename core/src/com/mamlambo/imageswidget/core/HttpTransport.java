@@ -0,0 +1,62 @@
+package com.mamlambo.imageswidget.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Performs the GET requests the engine needs, for feeds and images alike
+ */
+public interface HttpTransport {
+
+    /**
+     * A response whose headers have arrived; the body is read from {@link #getBody()}
+     */
+    interface Response {
+        /**
+         * @return The HTTP status code
+         */
+        int getStatus();
+
+        /**
+         * @return The value of the Content-Length header, or -1 if there is none
+         */
+        long getContentLength();
+
+        /**
+         * @return The value of the ETag header, or null
+         */
+        String getETag();
+
+        /**
+         * @return The value of the Last-Modified header, or null
+         */
+        String getLastModified();
+
+        /**
+         * @return The response body
+         * @throws IOException
+         *             if the body can't be read, for example because the status is an error
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Releases the connection. Must be called once the caller is done with the response.
+         */
+        void close();
+    }
+
+    /**
+     * Sends a GET request, conditional if validators are given
+     *
+     * @param url
+     *            What to fetch
+     * @param etag
+     *            Sent as If-None-Match, or null
+     * @param lastModified
+     *            Sent as If-Modified-Since, or null
+     * @return the response, once its headers have arrived
+     * @throws IOException
+     *             if the request couldn't be made
+     */
+    Response get(String url, String etag, String lastModified) throws IOException;
+}
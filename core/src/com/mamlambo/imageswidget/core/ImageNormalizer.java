@@ -0,0 +1,21 @@
+package com.mamlambo.imageswidget.core;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Rewrites each downloaded image once, before it enters the disk cache, into whatever form is cheapest to show later. Called on a download thread.
+ */
+public interface ImageNormalizer {
+
+    /**
+     * Replaces an image with its normalized form, atomically
+     *
+     * @param image
+     *            The downloaded image
+     * @return The size of the file afterwards, in bytes
+     * @throws IOException
+     *             if the image can't be decoded or rewritten; the engine drops it
+     */
+    long normalize(File image) throws IOException;
+}
@@ -0,0 +1,106 @@
+package com.mamlambo.imageswidget.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams a remote image into a local file.
+ *
+ * Data is copied straight from the stream to the file through one buffer owned by the calling thread, so a download worker allocates nothing per chunk and
+ * each byte is copied once on its way to disk. The image is written to a temporary file in the destination directory and only renamed into place once the
+ * whole body, as announced by Content-Length, has arrived. A cache file therefore either holds a complete image or doesn't exist.
+ */
+public class ImageTransfer {
+    public static final String TEMP_SUFFIX = ".tmp";
+    private static final String TEMP_PREFIX = "dl-";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // a temp file untouched for this long belongs to a write that died; a live download writes to its file at least once per read timeout
+    public static final long STALE_TEMP_AGE = 10 * 60 * 1000;
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private ImageTransfer() {
+    }
+
+    /**
+     * Copies a stream to target through a temporary file, replacing target atomically
+     *
+     * @param in
+     *            Stream to copy; not closed
+     * @param expectedLength
+     *            The length the stream should have, or -1 if unknown
+     * @param target
+     *            Final location of the data
+     * @return The number of bytes written
+     * @throws IOException
+     *             if the copy fails or the length doesn't match
+     */
+    public static long copy(InputStream in, long expectedLength, File target) throws IOException {
+        File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, target.getParentFile());
+        boolean done = false;
+        try {
+            long total;
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                total = transfer(in, out);
+            } finally {
+                out.close();
+            }
+
+            if (expectedLength >= 0 && total != expectedLength) {
+                throw new IOException("Truncated transfer: got " + total + " of " + expectedLength + " bytes");
+            }
+            if (!temp.renameTo(target)) {
+                throw new IOException("Failed to move download into place: " + target);
+            }
+            done = true;
+            return total;
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Removes temporary files left in dir by a write that never finished, for example when the process was killed mid-download. Only files untouched for
+     * {@link #STALE_TEMP_AGE} are removed, so a temp file another thread is still writing is left alone.
+     *
+     * @param dir
+     *            The directory downloads are written to
+     */
+    public static void deleteStaleTempFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - STALE_TEMP_AGE;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX) && file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+    }
+
+    private static long transfer(InputStream in, FileOutputStream out) throws IOException {
+        // wrapping the stream in a channel would allocate a fresh array per read, and a direct buffer would add a copy
+        byte[] buffer = buffers.get();
+        long total = 0;
+
+        // read until end of stream rather than until available() runs dry
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,182 @@
+package com.mamlambo.imageswidget.core;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms for each stage of a widget update, from fetching the feed to handing the views to the host.
+ *
+ * Recording is off until {@link #setEnabled(boolean)} turns it on. While it's off every call returns after reading one volatile field, without allocating.
+ * While it's on, a record is a handful of atomic adds into preallocated arrays. Histograms use power-of-two buckets, which is plenty to pick a refresh rate
+ * and cheap enough to leave on in the field.
+ */
+public final class Metrics {
+
+    /**
+     * Things that are counted
+     */
+    public enum Counter {
+        FEEDS_FETCHED, FEEDS_NOT_MODIFIED, FEED_FAILURES, ENCLOSURES_FOUND, DOWNLOADS, DOWNLOAD_FAILURES, REQUEST_FAILURES, CONNECTIONS_DROPPED,
+        BITMAP_CACHE_HITS, BITMAP_CACHE_MISSES, WIDGET_UPDATES
+    }
+
+    /**
+     * Things whose distribution is recorded, with their unit
+     */
+    public enum Histogram {
+        FEED_FETCH_MICROS, FEED_PARSE_MICROS, ENCLOSURES_PER_FEED, DOWNLOAD_MICROS, DOWNLOAD_BYTES, RESPONSE_HEADERS_MICROS, NORMALIZE_MICROS,
+        NORMALIZED_BYTES, DECODE_MICROS, REMOTE_VIEWS_BYTES, UPDATE_APP_WIDGET_MICROS
+    }
+
+    // bucket i holds values in [2^(i-1), 2^i); bucket 0 holds zero and below
+    private static final int BUCKETS = 64;
+
+    private static volatile boolean enabled;
+
+    private static final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private static final Distribution[] histograms = new Distribution[Histogram.values().length];
+    static {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Distribution();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @param on
+     *            true to start recording, false to stop; what was recorded so far is kept
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * @return true if recording
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds one to a counter
+     */
+    public static void count(Counter counter) {
+        if (enabled) {
+            counters.incrementAndGet(counter.ordinal());
+        }
+    }
+
+    /**
+     * Adds delta to a counter
+     */
+    public static void count(Counter counter, long delta) {
+        if (enabled) {
+            counters.addAndGet(counter.ordinal(), delta);
+        }
+    }
+
+    /**
+     * Records one value in a histogram
+     */
+    public static void record(Histogram histogram, long value) {
+        if (enabled) {
+            histograms[histogram.ordinal()].add(value);
+        }
+    }
+
+    /**
+     * Starts timing a stage
+     *
+     * @return the token to pass to {@link #stop(Histogram, long)}
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since {@link #start()} in a histogram, in microseconds
+     *
+     * @param histogram
+     *            Where the time goes
+     * @param start
+     *            The value {@link #start()} returned
+     */
+    public static void stop(Histogram histogram, long start) {
+        if (enabled && start != 0) {
+            histograms[histogram.ordinal()].add((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * @return A counter's current value
+     */
+    public static long get(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /**
+     * Clears everything recorded so far
+     */
+    public static void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        for (Distribution distribution : histograms) {
+            distribution.reset();
+        }
+    }
+
+    /**
+     * Writes every counter and histogram as plain text, one line per metric followed by its non-empty buckets
+     *
+     * @param out
+     *            Where to write
+     */
+    public static void dump(PrintWriter out) {
+        for (Counter counter : Counter.values()) {
+            out.println(counter.name() + " " + counters.get(counter.ordinal()));
+        }
+        for (Histogram histogram : Histogram.values()) {
+            Distribution distribution = histograms[histogram.ordinal()];
+            long count = distribution.count.get();
+            out.println(histogram.name() + " count=" + count + " mean=" + (count > 0 ? distribution.sum.get() / count : 0) + " max=" + distribution.max.get());
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = distribution.buckets.get(i);
+                if (n > 0) {
+                    out.println("  <" + (i == 0 ? 1 : (i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i)) + " " + n);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static final class Distribution {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        void add(long value) {
+            int bucket = value <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long previous;
+            while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+                // lost a race with another maximum; try again
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package com.mamlambo.imageswidget.core;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The images one widget cycles through, safe to read from any thread without locking.
+ *
+ * Readers work from an immutable snapshot of the list that writers replace wholesale (copy-on-publish), and the position in the cycle is a single atomic
+ * counter. Writers, which only run when a feed pass or download changes the list, serialize among themselves. Membership is checked against a hash set
+ * rather than by scanning the list.
+ *
+ * In shuffle mode every pass visits each image once in a random order, and a new order is drawn for each pass without starting on the image the last pass
+ * ended with. When the list changes mid-pass, the rest of the pass is dealt from the images it hasn't shown yet, so adding or removing images never repeats
+ * one within a pass.
+ */
+public class Playlist {
+    private static final String[] EMPTY = new String[0];
+
+    // the cursor holds the generation of the snapshot it counts through above the position in it, so a step taken against a snapshot that has since been
+    // replaced fails and is retried instead of landing somewhere in the new one
+    private static final int POSITION_BITS = 40;
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+    private static final int GENERATION_MASK = (1 << (63 - POSITION_BITS)) - 1;
+
+    private final boolean shuffle;
+    private final long seed;
+    private final Object writeLock = new Object();
+    private final ConcurrentHashMap<String, Boolean> members = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicLong cursor = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY, null);
+
+    // shuffle order for the current pass, drawn on first use
+    private final AtomicReference<Order> order = new AtomicReference<Order>();
+
+    /**
+     * @param shuffle
+     *            true to visit images in random order, false for the order they were added
+     * @param seed
+     *            Seed for the random order; the same seed and list give the same order
+     */
+    public Playlist(boolean shuffle, long seed) {
+        this.shuffle = shuffle;
+        this.seed = seed;
+    }
+
+    /**
+     * Adds an image unless it's already there
+     *
+     * @param path
+     *            Local path to the image
+     * @return the number of images including this one, or 0 if it was already there
+     */
+    public int add(String path) {
+        if (members.containsKey(path)) {
+            return 0;
+        }
+        synchronized (writeLock) {
+            if (members.putIfAbsent(path, Boolean.TRUE) != null) {
+                return 0;
+            }
+            String[] current = snapshot.items;
+            String[] updated = new String[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = path;
+            publish(updated);
+            return updated.length;
+        }
+    }
+
+    /**
+     * Removes an image
+     *
+     * @param path
+     *            Local path to the image
+     * @return true if the image was in the list
+     */
+    public boolean remove(String path) {
+        if (!members.containsKey(path)) {
+            return false;
+        }
+        synchronized (writeLock) {
+            if (members.remove(path) == null) {
+                return false;
+            }
+            String[] current = snapshot.items;
+            String[] updated = new String[current.length - 1];
+            int j = 0;
+            for (String item : current) {
+                if (!item.equals(path)) {
+                    updated[j++] = item;
+                }
+            }
+            publish(updated);
+            return true;
+        }
+    }
+
+    /**
+     * Empties the list
+     */
+    public void clear() {
+        synchronized (writeLock) {
+            members.clear();
+            int generation = nextGeneration();
+            snapshot = new Snapshot(generation, EMPTY, null);
+            order.set(null);
+            cursor.set(pack(generation, 0));
+        }
+    }
+
+    /**
+     * @param path
+     *            Local path to an image
+     * @return true if the image is in the list
+     */
+    public boolean contains(String path) {
+        return members.containsKey(path);
+    }
+
+    /**
+     * @return The number of images
+     */
+    public int size() {
+        return snapshot.items.length;
+    }
+
+    /**
+     * @return true if there are no images
+     */
+    public boolean isEmpty() {
+        return snapshot.items.length == 0;
+    }
+
+    /**
+     * @return An immutable copy of the images in the order they were added
+     */
+    public String[] snapshot() {
+        return snapshot.items;
+    }
+
+    /**
+     * @return The image being shown, or null if there are none
+     */
+    public String current() {
+        return imageAt(0);
+    }
+
+    /**
+     * Moves on to the next image
+     *
+     * @return The new image to show, or null if there are none
+     */
+    public String next() {
+        while (true) {
+            long position = cursor.get();
+            Snapshot current = snapshot;
+            if (current.items.length == 0) {
+                return null;
+            }
+            if (generationOf(position) != current.generation) {
+                // a writer is between publishing a snapshot and moving the cursor onto it
+                Thread.yield();
+            } else if (cursor.compareAndSet(position, position + 1)) {
+                return current.items[indexAt(current, (position & POSITION_MASK) + 1)];
+            }
+        }
+    }
+
+    /**
+     * @return The image {@link #next()} would move on to, or null if there are none
+     */
+    public String peekNext() {
+        return imageAt(1);
+    }
+
+    /**
+     * Makes an image the one being shown, for example to resume where a previous run left off
+     *
+     * @param path
+     *            Local path to the image
+     * @return true if the image is in the list
+     */
+    public boolean setCurrent(String path) {
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            for (int i = 0; i < current.items.length; i++) {
+                if (current.items[i].equals(path)) {
+                    long position;
+                    do {
+                        position = cursor.get();
+                    } while (!cursor.compareAndSet(position,
+                            pack(current.generation, positionOf(current, i, (position & POSITION_MASK) / current.items.length))));
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // the image offset steps past the cursor, read together with the snapshot the cursor counts through
+    private String imageAt(int offset) {
+        while (true) {
+            long position = cursor.get();
+            Snapshot current = snapshot;
+            if (current.items.length == 0) {
+                return null;
+            }
+            if (generationOf(position) == current.generation) {
+                return current.items[indexAt(current, (position & POSITION_MASK) + offset)];
+            }
+            Thread.yield();
+        }
+    }
+
+    // called with writeLock held
+    private void publish(String[] updated) {
+        Snapshot previous = snapshot;
+        int generation = nextGeneration();
+        while (true) {
+            long packed = cursor.get();
+            long position = packed & POSITION_MASK;
+            long pass = previous.items.length > 0 ? position / previous.items.length : 0;
+
+            Order dealt = null;
+            long moved;
+            if (shuffle && previous.items.length > 0 && updated.length > 0) {
+                dealt = deal(previous, position, updated);
+                // the image being shown is the last one shown that's still here; if none is left, a fresh pass starts with the next image
+                moved = dealt != null ? pass * updated.length + dealt.shownCount - 1 : (pass + 1) * updated.length - 1;
+            } else {
+                // keep showing the same image even though its position changes
+                String shown = previous.items.length > 0 ? previous.items[indexAt(previous, position)] : null;
+                int index = -1;
+                for (int i = 0; shown != null && i < updated.length; i++) {
+                    if (updated[i].equals(shown)) {
+                        index = i;
+                        break;
+                    }
+                }
+                Snapshot next = new Snapshot(generation, updated, null);
+                moved = index >= 0 ? positionOf(next, index, pass) : pass * updated.length;
+            }
+
+            // published before the cursor moves onto it, so a reader that sees the new generation in the cursor sees this snapshot
+            snapshot = new Snapshot(generation, updated, dealt);
+            if (cursor.compareAndSet(packed, pack(generation, moved))) {
+                order.set(null);
+                return;
+            }
+            // a reader stepped in the meantime, and that image counts as shown
+        }
+    }
+
+    /**
+     * Orders what's left of the current pass for a changed list: the images it has shown so far stay at its start, in the order they were shown, and the rest
+     * are dealt after them. Returns null if none of the images shown is left.
+     */
+    private Order deal(Snapshot previous, long position, String[] updated) {
+        HashMap<String, Integer> indexes = new HashMap<String, Integer>(updated.length * 2);
+        for (int i = 0; i < updated.length; i++) {
+            indexes.put(updated[i], i);
+        }
+        long pass = position / previous.items.length;
+        int[] previousOrder = orderFor(previous, pass);
+        int[] permutation = new int[updated.length];
+        boolean[] shown = new boolean[updated.length];
+        int count = 0;
+        for (int i = 0; i <= position % previous.items.length; i++) {
+            Integer index = indexes.get(previous.items[previousOrder[i]]);
+            if (index != null) {
+                permutation[count++] = index;
+                shown[index] = true;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        int[] unshown = new int[updated.length - count];
+        for (int i = 0, j = 0; i < updated.length; i++) {
+            if (!shown[i]) {
+                unshown[j++] = i;
+            }
+        }
+        int[] rest = shuffled(unshown.length, pass);
+        for (int i = 0; i < rest.length; i++) {
+            permutation[count + i] = unshown[rest[i]];
+        }
+        return new Order(updated, pass, permutation, count);
+    }
+
+    /**
+     * Maps a cursor position to an index into the snapshot
+     */
+    private int indexAt(Snapshot current, long position) {
+        int length = current.items.length;
+        int offset = (int) (position % length);
+        if (!shuffle) {
+            return offset;
+        }
+        return orderFor(current, position / length)[offset];
+    }
+
+    /**
+     * Finds the cursor position in pass that shows index
+     */
+    private long positionOf(Snapshot current, int index, long pass) {
+        int length = current.items.length;
+        if (!shuffle) {
+            return pass * length + index;
+        }
+        int[] permutation = orderFor(current, pass);
+        for (int i = 0; i < permutation.length; i++) {
+            if (permutation[i] == index) {
+                return pass * length + i;
+            }
+        }
+        return pass * length;
+    }
+
+    private int[] orderFor(Snapshot current, long pass) {
+        Order dealt = current.dealt;
+        if (dealt != null && dealt.pass == pass) {
+            return dealt.permutation;
+        }
+        Order cached = order.get();
+        if (cached != null && cached.items == current.items && cached.pass == pass) {
+            return cached.permutation;
+        }
+
+        int length = current.items.length;
+        int[] permutation = drawn(length, pass);
+        if (pass > 0 && length > 1) {
+            // don't start a pass on the image the last one ended with
+            int[] previous = dealt != null && dealt.pass == pass - 1 ? dealt.permutation : drawn(length, pass - 1);
+            if (permutation[0] == previous[previous.length - 1]) {
+                permutation[0] = permutation[1];
+                permutation[1] = previous[previous.length - 1];
+            }
+        }
+        order.compareAndSet(cached, new Order(current.items, pass, permutation, 0));
+        return permutation;
+    }
+
+    // with two images, alternating is the only order that never repeats
+    private int[] drawn(int length, long pass) {
+        return shuffled(length, length > 2 ? pass : 0);
+    }
+
+    private int[] shuffled(int length, long pass) {
+        int[] permutation = new int[length];
+        for (int i = 0; i < length; i++) {
+            permutation[i] = i;
+        }
+        // Fisher-Yates, seeded per pass so every thread draws the same order
+        Random random = new Random(seed * 31 + pass);
+        for (int i = length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = swap;
+        }
+        return permutation;
+    }
+
+    // called with writeLock held
+    private int nextGeneration() {
+        return (snapshot.generation + 1) & GENERATION_MASK;
+    }
+
+    private static long pack(int generation, long position) {
+        return (long) generation << POSITION_BITS | position;
+    }
+
+    private static int generationOf(long packed) {
+        return (int) (packed >>> POSITION_BITS);
+    }
+
+    /**
+     * A version of the list, with the order of the pass it changed during if that can't be drawn from the seed
+     */
+    private static final class Snapshot {
+        final int generation;
+        final String[] items;
+        final Order dealt;
+
+        Snapshot(int generation, String[] items, Order dealt) {
+            this.generation = generation;
+            this.items = items;
+            this.dealt = dealt;
+        }
+    }
+
+    private static final class Order {
+        final String[] items;
+        final long pass;
+        final int[] permutation;
+        // for a dealt order, how many images at its start the pass had already shown
+        final int shownCount;
+
+        Order(String[] items, long pass, int[] permutation, int shownCount) {
+            this.items = items;
+            this.pass = pass;
+            this.permutation = permutation;
+            this.shownCount = shownCount;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.mamlambo.imageswidget.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An append-only on-disk record of one widget's playlist.
+ *
+ * Every change to the playlist (an image added or removed, the slideshow moving on, a feed pass) is appended as a small binary record, so keeping the index
+ * current costs a few bytes per change. Replaying the records restores the playlist after the process has been killed without going back to the network. The
+ * file is rewritten from scratch once it holds many more records than live entries, or when loading finds it damaged or out of date; otherwise loading only
+ * reads it.
+ */
+public class PlaylistIndex {
+    private static final int VERSION = 1;
+
+    private static final byte RECORD_ADD = 'A';
+    private static final byte RECORD_REMOVE = 'R';
+    private static final byte RECORD_CURSOR = 'C';
+    private static final byte RECORD_FETCHED = 'F';
+
+    // rewrite once this many records don't describe a live entry
+    private static final int REDUNDANT_RECORD_LIMIT = 200;
+
+    /**
+     * One image in the playlist
+     */
+    public static class Entry {
+        public final String url;
+        public final String path;
+        public final int feedPosition;
+
+        public Entry(String url, String path, int feedPosition) {
+            this.url = url;
+            this.path = path;
+            this.feedPosition = feedPosition;
+        }
+    }
+
+    private final File file;
+    private DataOutputStream out;
+
+    // the replayed state, kept current so the file can be compacted
+    private final ArrayList<Entry> entries = new ArrayList<Entry>();
+    private String current;
+    private long lastFetched;
+    private int records;
+
+    /**
+     * @param file
+     *            Where the index is stored. Need not exist yet.
+     */
+    public PlaylistIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replays the index from disk. Entries whose cache file no longer exists are dropped.
+     *
+     * @return the entries, in the order they were added
+     */
+    public synchronized List<Entry> load() {
+        entries.clear();
+        current = null;
+        lastFetched = 0;
+        records = 0;
+
+        // a file that doesn't exist yet gets its header with the first record
+        boolean intact = true;
+        if (file.exists()) {
+            intact = false;
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (in.readInt() == VERSION) {
+                        replay(in);
+                        intact = true;
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (EOFException e) {
+                // a torn final record; everything before it is good, but nothing may be appended after it
+            } catch (IOException e) {
+                entries.clear();
+            }
+        }
+
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!new File(entry.path).exists()) {
+                iterator.remove();
+                intact = false;
+                if (entry.path.equals(current)) {
+                    current = null;
+                }
+            }
+        }
+        if (!intact || records - entries.size() > REDUNDANT_RECORD_LIMIT) {
+            rewrite();
+        }
+        return new ArrayList<Entry>(entries);
+    }
+
+    /**
+     * @return The path of the last image shown, as of the last {@link #load()}; null if none or it has since gone
+     */
+    public synchronized String getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return When the feed was last fetched or found unchanged, as of the last {@link #load()}, in milliseconds since the epoch; 0 if never
+     */
+    public synchronized long getLastFetched() {
+        return lastFetched;
+    }
+
+    /**
+     * Records an image added to the playlist
+     */
+    public synchronized void added(String url, String path, int feedPosition) {
+        entries.add(new Entry(url, path, feedPosition));
+        try {
+            DataOutputStream stream = open();
+            stream.writeByte(RECORD_ADD);
+            stream.writeUTF(url);
+            stream.writeUTF(path);
+            stream.writeInt(feedPosition);
+            stream.flush();
+        } catch (IOException e) {
+            close();
+        }
+        recorded();
+    }
+
+    /**
+     * Records an image removed from the playlist
+     */
+    public synchronized void removed(String path) {
+        removeEntry(path);
+        try {
+            DataOutputStream stream = open();
+            stream.writeByte(RECORD_REMOVE);
+            stream.writeUTF(path);
+            stream.flush();
+        } catch (IOException e) {
+            close();
+        }
+        recorded();
+    }
+
+    /**
+     * Records the image being shown. Kept by path rather than position, since positions shift whenever an earlier image goes.
+     */
+    public synchronized void cursorMoved(String path) {
+        if (path.equals(current)) {
+            return;
+        }
+        current = path;
+        try {
+            DataOutputStream stream = open();
+            stream.writeByte(RECORD_CURSOR);
+            stream.writeUTF(path);
+            stream.flush();
+        } catch (IOException e) {
+            close();
+        }
+        recorded();
+    }
+
+    /**
+     * Records a completed feed pass, or a feed found unchanged
+     */
+    public synchronized void fetched(long time) {
+        lastFetched = time;
+        try {
+            DataOutputStream stream = open();
+            stream.writeByte(RECORD_FETCHED);
+            stream.writeLong(time);
+            stream.flush();
+        } catch (IOException e) {
+            close();
+        }
+        recorded();
+    }
+
+    /**
+     * Closes and removes the index
+     */
+    public synchronized void delete() {
+        close();
+        file.delete();
+        entries.clear();
+        current = null;
+        lastFetched = 0;
+        records = 0;
+    }
+
+    /**
+     * Closes the index; it's reopened by the next change
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing more we can do
+            }
+            out = null;
+        }
+    }
+
+    private void replay(DataInputStream in) throws IOException {
+        int record;
+        while ((record = in.read()) != -1) {
+            records++;
+            switch (record) {
+            case RECORD_ADD:
+                String url = in.readUTF();
+                String path = in.readUTF();
+                int position = in.readInt();
+                removeEntry(path);
+                entries.add(new Entry(url, path, position));
+                break;
+            case RECORD_REMOVE:
+                removeEntry(in.readUTF());
+                break;
+            case RECORD_CURSOR:
+                current = in.readUTF();
+                break;
+            case RECORD_FETCHED:
+                lastFetched = in.readLong();
+                break;
+            default:
+                throw new IOException("Corrupt playlist index: " + file);
+            }
+        }
+    }
+
+    private void removeEntry(String path) {
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().path.equals(path)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private DataOutputStream open() throws IOException {
+        if (out == null) {
+            boolean exists = file.exists();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            if (!exists) {
+                out.writeInt(VERSION);
+            }
+        }
+        return out;
+    }
+
+    private void recorded() {
+        if (++records - entries.size() > REDUNDANT_RECORD_LIMIT) {
+            rewrite();
+        }
+    }
+
+    private void rewrite() {
+        close();
+        File temp = new File(file.getPath() + ImageTransfer.TEMP_SUFFIX);
+        try {
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                stream.writeInt(VERSION);
+                for (Entry entry : entries) {
+                    stream.writeByte(RECORD_ADD);
+                    stream.writeUTF(entry.url);
+                    stream.writeUTF(entry.path);
+                    stream.writeInt(entry.feedPosition);
+                }
+                if (current != null) {
+                    stream.writeByte(RECORD_CURSOR);
+                    stream.writeUTF(current);
+                }
+                stream.writeByte(RECORD_FETCHED);
+                stream.writeLong(lastFetched);
+            } finally {
+                stream.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to replace playlist index: " + file);
+            }
+            records = entries.size() + (current != null ? 2 : 1);
+        } catch (IOException e) {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.mamlambo.imageswidget.core;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules feed refreshes for every widget on a single thread.
+ *
+ * Widgets subscribe to a feed URL; widgets sharing a URL share one refresh. Each feed has one deadline in the executor's delay queue, and a random jitter is
+ * added to every periodic deadline, and to the first deadline of a feed fetched before, so feeds added or restored together drift apart instead of all
+ * refreshing at the same moment. The thread count stays at one no matter how many widgets are placed.
+ *
+ * A feed whose refresh fails is retried sooner than the regular interval, backing off exponentially with each further failure, with a random part so retries
+ * of feeds that failed together spread out. The first success puts it back on the regular interval.
+ */
+public class RefreshScheduler {
+
+    /**
+     * Does the actual work of refreshing a feed
+     */
+    public interface FeedRefresher {
+        /**
+         * Called on the scheduler thread when a feed is due
+         *
+         * @param feedUrl
+         *            The feed to refresh
+         * @param appWidgetIds
+         *            The widgets subscribed to it at the time of the refresh
+         * @return false if the refresh failed and should be retried
+         */
+        boolean refreshFeed(String feedUrl, int[] appWidgetIds);
+    }
+
+    private final ScheduledExecutorService executor;
+    private final FeedRefresher refresher;
+    private final long interval;
+    private final long maxJitter;
+    private final long retryDelay;
+    private final Random random = new Random();
+
+    // guarded by this
+    private final HashMap<String, Feed> feeds = new HashMap<String, Feed>();
+    private final HashMap<Integer, String> widgetFeeds = new HashMap<Integer, String>();
+
+    /**
+     * @param interval
+     *            Time between refreshes of a feed, in milliseconds
+     * @param maxJitter
+     *            Upper bound of the random delay added to each interval, in milliseconds
+     * @param retryDelay
+     *            Delay before the first retry of a failed refresh, in milliseconds; doubled for each further failure, up to the interval
+     * @param refresher
+     *            Performs the refreshes
+     */
+    public RefreshScheduler(long interval, long maxJitter, long retryDelay, FeedRefresher refresher) {
+        this(interval, maxJitter, retryDelay, new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ImagesWidgetRefresh");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        }), refresher);
+    }
+
+    /**
+     * @param interval
+     *            Time between refreshes of a feed, in milliseconds
+     * @param maxJitter
+     *            Upper bound of the random delay added to each interval, in milliseconds
+     * @param retryDelay
+     *            Delay before the first retry of a failed refresh, in milliseconds; doubled for each further failure, up to the interval
+     * @param executor
+     *            Runs the refreshes, one at a time; for example a simulated clock's executor. Shut down by {@link #shutdown()}.
+     * @param refresher
+     *            Performs the refreshes
+     */
+    public RefreshScheduler(long interval, long maxJitter, long retryDelay, ScheduledExecutorService executor, FeedRefresher refresher) {
+        this.interval = interval;
+        this.maxJitter = maxJitter;
+        this.retryDelay = retryDelay;
+        this.executor = executor;
+        this.refresher = refresher;
+    }
+
+    /**
+     * Subscribes a widget to a feed, moving it off any feed it was subscribed to before. The feed is refreshed right away so the widget gets its images.
+     *
+     * @param appWidgetId
+     *            The widget subscribing
+     * @param feedUrl
+     *            The feed it shows
+     */
+    public void subscribe(int appWidgetId, String feedUrl) {
+        subscribe(appWidgetId, feedUrl, 0);
+    }
+
+    /**
+     * Subscribes a widget to a feed, moving it off any feed it was subscribed to before. The feed is refreshed within maxDelay; sooner if it was already due.
+     *
+     * @param appWidgetId
+     *            The widget subscribing
+     * @param feedUrl
+     *            The feed it shows
+     * @param maxDelay
+     *            The longest the widget can wait for a refresh, in milliseconds
+     */
+    public synchronized void subscribe(int appWidgetId, String feedUrl, long maxDelay) {
+        String previous = widgetFeeds.get(appWidgetId);
+        if (feedUrl.equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            unsubscribe(appWidgetId);
+        }
+
+        Feed feed = feeds.get(feedUrl);
+        if (feed == null) {
+            feed = new Feed(feedUrl);
+            feeds.put(feedUrl, feed);
+        }
+        feed.widgets.add(appWidgetId);
+        widgetFeeds.put(appWidgetId, feedUrl);
+        feed.scheduleWithin(maxDelay);
+    }
+
+    /**
+     * Subscribes a widget to a feed that was fetched before, for example by a previous run of the process. The feed is refreshed an interval after that
+     * fetch, plus the same jitter as every periodic refresh, so feeds restored together that are already overdue spread over the jitter instead of all
+     * refreshing the moment they're subscribed.
+     *
+     * @param appWidgetId
+     *            The widget subscribing
+     * @param feedUrl
+     *            The feed it shows
+     * @param sinceFetched
+     *            How long ago the feed was last fetched, in milliseconds
+     */
+    public void subscribeFetched(int appWidgetId, String feedUrl, long sinceFetched) {
+        subscribe(appWidgetId, feedUrl, Math.max(0, interval - sinceFetched) + jitter());
+    }
+
+    /**
+     * Removes a widget from its feed. Feeds without subscribers stop refreshing.
+     *
+     * @param appWidgetId
+     *            The widget to remove
+     */
+    public synchronized void unsubscribe(int appWidgetId) {
+        String feedUrl = widgetFeeds.remove(appWidgetId);
+        if (feedUrl == null) {
+            return;
+        }
+
+        Feed feed = feeds.get(feedUrl);
+        feed.widgets.remove(appWidgetId);
+        if (feed.widgets.isEmpty()) {
+            feed.cancel();
+            feeds.remove(feedUrl);
+        }
+    }
+
+    /**
+     * Refreshes a feed as soon as possible instead of waiting for its deadline
+     *
+     * @param feedUrl
+     *            The feed to refresh
+     */
+    public synchronized void refreshNow(String feedUrl) {
+        Feed feed = feeds.get(feedUrl);
+        if (feed != null) {
+            feed.schedule(0);
+        }
+    }
+
+    /**
+     * @param appWidgetId
+     *            The widget to look up
+     * @return The feed the widget is subscribed to, or null
+     */
+    public synchronized String getFeedUrl(int appWidgetId) {
+        return widgetFeeds.get(appWidgetId);
+    }
+
+    /**
+     * @return The number of distinct feeds being refreshed
+     */
+    public synchronized int getFeedCount() {
+        return feeds.size();
+    }
+
+    /**
+     * Runs a task on the scheduler thread after a delay, unless the scheduler has been shut down by then
+     *
+     * @param task
+     *            The task
+     * @param delay
+     *            How long to wait, in milliseconds
+     */
+    public synchronized void schedule(Runnable task, long delay) {
+        if (!executor.isShutdown()) {
+            executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return true once {@link #shutdown()} has been called
+     */
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Cancels every pending refresh. A refresh already running is allowed to finish.
+     */
+    public synchronized void shutdown() {
+        // emptying the queue first leaves each cancel's purge nothing to scan
+        executor.shutdownNow();
+        Iterator<Feed> iterator = feeds.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().cancel();
+        }
+        feeds.clear();
+        widgetFeeds.clear();
+    }
+
+    private long nextDelay() {
+        return interval + jitter();
+    }
+
+    private long jitter() {
+        return maxJitter > 0 ? (long) (random.nextDouble() * maxJitter) : 0;
+    }
+
+    // somewhere between half and all of retryDelay doubled for every failure after the first
+    private long retryDelay(int failures) {
+        long delay = Math.min(interval, retryDelay << Math.min(failures - 1, 20));
+        return delay - (long) (random.nextDouble() * delay / 2);
+    }
+
+    private class Feed implements Runnable {
+        final String url;
+        final HashSet<Integer> widgets = new HashSet<Integer>();
+        ScheduledFuture<?> next;
+        boolean running;
+        boolean rerun;
+        int failures;
+
+        Feed(String url) {
+            this.url = url;
+        }
+
+        // called with the scheduler locked
+        void schedule(long delay) {
+            if (running) {
+                // refresh again as soon as the current one finishes
+                rerun = rerun || delay == 0;
+                return;
+            }
+            cancel();
+            if (!executor.isShutdown()) {
+                next = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // called with the scheduler locked
+        void scheduleWithin(long maxDelay) {
+            if (running || (next != null && next.getDelay(TimeUnit.MILLISECONDS) <= maxDelay)) {
+                // already due soon enough
+                if (running && maxDelay == 0) {
+                    rerun = true;
+                }
+                return;
+            }
+            schedule(maxDelay);
+        }
+
+        // called with the scheduler locked
+        void cancel() {
+            if (next != null) {
+                next.cancel(false);
+                next = null;
+                // a cancelled task stays in the delay queue until its deadline otherwise, and a feed rescheduled every few minutes would pile them up
+                if (executor instanceof ThreadPoolExecutor) {
+                    ((ThreadPoolExecutor) executor).purge();
+                }
+            }
+        }
+
+        public void run() {
+            int[] appWidgetIds;
+            synchronized (RefreshScheduler.this) {
+                if (feeds.get(url) != this) {
+                    return;
+                }
+                running = true;
+                rerun = false;
+                next = null;
+
+                appWidgetIds = new int[widgets.size()];
+                int i = 0;
+                for (Integer appWidgetId : widgets) {
+                    appWidgetIds[i++] = appWidgetId;
+                }
+            }
+
+            boolean refreshed = false;
+            try {
+                refreshed = refresher.refreshFeed(url, appWidgetIds);
+            } finally {
+                synchronized (RefreshScheduler.this) {
+                    running = false;
+                    failures = refreshed ? 0 : failures + 1;
+                    if (feeds.get(url) == this) {
+                        schedule(rerun ? 0 : refreshed ? nextDelay() : retryDelay(failures));
+                    }
+                }
+            }
+        }
+    }
+}
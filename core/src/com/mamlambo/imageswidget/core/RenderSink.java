@@ -0,0 +1,39 @@
+package com.mamlambo.imageswidget.core;
+
+/**
+ * Receives what the engine has to say to whatever draws the widgets. Called from background threads.
+ */
+public interface RenderSink {
+
+    /**
+     * A widget that had nothing to show just got its first image
+     *
+     * @param appWidgetId
+     *            The widget
+     */
+    void onFirstImage(int appWidgetId);
+
+    /**
+     * An image left a widget's playlist; decoded copies of it may be dropped. The file itself may still be shown by other widgets.
+     *
+     * @param imagePath
+     *            Local path to the image
+     */
+    void onImageRemoved(String imagePath);
+
+    /**
+     * An image's file was deleted from the disk cache; anything derived from it should go too
+     *
+     * @param imagePath
+     *            Local path the image had
+     */
+    void onImageDeleted(String imagePath);
+
+    /**
+     * A feed pass finished, successfully or not. Downloads it started may still be running.
+     *
+     * @param feedUrl
+     *            The feed
+     */
+    void onFeedRefreshed(String feedUrl);
+}
@@ -0,0 +1,1011 @@
+package com.mamlambo.imageswidget.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Everything behind the widgets that isn't drawing: which images each widget cycles through, refreshing the feeds they follow, and downloading images into
+ * the shared disk cache.
+ *
+ * The engine has no Android dependencies. It reaches the outside world through a {@link HttpTransport}, remembers feed validators in a
+ * {@link FeedStateStore}, reads time from a {@link Clock} and reports to a {@link RenderSink}, so it can run headless on a desktop JVM with thousands of
+ * simulated widgets. Each widget's playlist is kept in an append-only {@link PlaylistIndex} so it survives a restart.
+ *
+ * Widgets following the same feed share it: the feed is fetched and parsed once per refresh, each image is downloaded once, and the result is handed to every
+ * widget following it. A widget added to a feed that's already known starts from the feed's last result from the {@link FeedRegistry}.
+ */
+public class SlideshowEngine {
+    private static final Logger log = Logger.getLogger("ImagesWidgetEngine");
+
+    // how long a feed pass waits for room in the download queue, and how long close() waits for running downloads
+    private static final long DOWNLOAD_SUBMIT_WAIT = 30 * 1000;
+    private static final long DOWNLOAD_SHUTDOWN_WAIT = 2 * 1000;
+
+    // Update images from feed every two hours, give or take the jitter
+    private static final int URL_UPDATE_DELAY = 2 * 60 * 60 * 1000;
+    private static final int URL_UPDATE_JITTER = 10 * 60 * 1000;
+
+    // a failed feed is retried after a minute, then backs off towards URL_UPDATE_DELAY
+    private static final long FEED_RETRY_DELAY = 60 * 1000;
+
+    // a host failing this many times in a row is left alone for a while, starting at a minute and doubling up to an hour
+    private static final int HOST_FAILURE_THRESHOLD = 3;
+    private static final long HOST_MIN_COOL_DOWN = 60 * 1000;
+    private static final long HOST_MAX_COOL_DOWN = 60 * 60 * 1000;
+
+    private final HttpTransport transport;
+    private final FeedStateStore feedState;
+    private final Clock clock;
+    private final RenderSink sink;
+    private final File playlistDir;
+
+    private final Hashtable<Integer, Slideshow> slideshows = new Hashtable<Integer, Slideshow>();
+    private final RefreshScheduler refresher;
+    private final FeedRegistry registry = new FeedRegistry();
+    private final HostBreaker breaker;
+    private final DownloadExecutor downloads;
+
+    // downloads queued, running or waiting for their host to recover, by image URL; guarded by itself
+    private final HashMap<String, PendingDownload> pending = new HashMap<String, PendingDownload>();
+    private DiskCache images;
+    private volatile ImageNormalizer normalizer;
+
+    /**
+     * Opens the image cache and starts the refresh and download threads
+     *
+     * @param imageDir
+     *            Where downloaded images are kept, shared by all widgets
+     * @param imageCacheQuota
+     *            Upper bound on the bytes kept in imageDir
+     * @param playlistDir
+     *            Where each widget's playlist is kept
+     * @param transport
+     *            Fetches feeds and images
+     * @param downloads
+     *            Runs the image downloads; its limits are the caller's to choose, and it's shut down by {@link #close()}
+     * @param feedState
+     *            Remembers each feed's cache validators and the images it listed
+     * @param clock
+     *            Wall-clock time, for deciding when a restored feed is due
+     * @param sink
+     *            Told when widgets need redrawing and images go away
+     */
+    public SlideshowEngine(File imageDir, long imageCacheQuota, File playlistDir, HttpTransport transport, DownloadExecutor downloads,
+            FeedStateStore feedState, Clock clock, RenderSink sink) {
+        this(imageDir, imageCacheQuota, playlistDir, transport, downloads, feedState, clock, null, sink);
+    }
+
+    /**
+     * Opens the image cache and starts the download threads, running feed refreshes on a given executor
+     *
+     * @param imageDir
+     *            Where downloaded images are kept, shared by all widgets
+     * @param imageCacheQuota
+     *            Upper bound on the bytes kept in imageDir
+     * @param playlistDir
+     *            Where each widget's playlist is kept
+     * @param transport
+     *            Fetches feeds and images
+     * @param downloads
+     *            Runs the image downloads; its limits are the caller's to choose, and it's shut down by {@link #close()}
+     * @param feedState
+     *            Remembers each feed's cache validators and the images it listed
+     * @param clock
+     *            Wall-clock time, for deciding when a restored feed is due
+     * @param refreshExecutor
+     *            Runs feed refreshes and download retries one at a time, in step with clock; null for a background thread of the engine's own. Shut down
+     *            by {@link #close()}.
+     * @param sink
+     *            Told when widgets need redrawing and images go away
+     */
+    public SlideshowEngine(File imageDir, long imageCacheQuota, File playlistDir, HttpTransport transport, DownloadExecutor downloads,
+            FeedStateStore feedState, Clock clock, ScheduledExecutorService refreshExecutor, RenderSink sink) {
+        this.transport = transport;
+        this.downloads = downloads;
+        this.feedState = feedState;
+        this.clock = clock;
+        this.sink = sink;
+        this.playlistDir = playlistDir;
+
+        breaker = new HostBreaker(clock, HOST_FAILURE_THRESHOLD, HOST_MIN_COOL_DOWN, HOST_MAX_COOL_DOWN);
+        RefreshScheduler.FeedRefresher feedRefresher = new RefreshScheduler.FeedRefresher() {
+            public boolean refreshFeed(String feedUrl, int[] appWidgetIds) {
+                return getAndParseFeedUrl(feedUrl, appWidgetIds);
+            }
+        };
+        if (refreshExecutor != null) {
+            refresher = new RefreshScheduler(URL_UPDATE_DELAY, URL_UPDATE_JITTER, FEED_RETRY_DELAY, refreshExecutor, feedRefresher);
+        } else {
+            refresher = new RefreshScheduler(URL_UPDATE_DELAY, URL_UPDATE_JITTER, FEED_RETRY_DELAY, feedRefresher);
+        }
+
+        try {
+            images = new DiskCache(imageDir, imageCacheQuota);
+            images.setEvictionListener(new DiskCache.EvictionListener() {
+                public void onEvicted(File file) {
+                    forgetImage(file.getPath());
+                }
+            });
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Failed to open image cache", e);
+        }
+
+        if (!playlistDir.isDirectory() && !playlistDir.mkdirs()) {
+            log.severe("Failed to create " + playlistDir);
+        }
+
+        // partial downloads from a previous process never made it into place
+        ImageTransfer.deleteStaleTempFiles(imageDir);
+    }
+
+    /**
+     * Sets what downloaded images are rewritten with before they're cached
+     *
+     * @param normalizer
+     *            The normalizer, or null to keep images as downloaded
+     */
+    public void setImageNormalizer(ImageNormalizer normalizer) {
+        this.normalizer = normalizer;
+    }
+
+    /**
+     * Returns the image a widget should show, starting to track the widget if it's new. A new widget picks up the playlist it had before the engine was
+     * last restarted, or else the images other widgets following the same feed already have, and its feed is left alone until it's due.
+     *
+     * @param appWidgetId
+     *            The widget
+     * @param feedUrl
+     *            The feed it follows, or an empty string if it isn't configured yet
+     * @param advance
+     *            true to move on to the next image; ignored for a widget the engine didn't know yet
+     * @return Local path to the image, or null if the widget has none yet
+     */
+    public String showWidget(int appWidgetId, String feedUrl, boolean advance) {
+        Slideshow slideshow = slideshows.get(appWidgetId);
+        if (slideshow != null) {
+            // follow the feed if it was changed in the configuration
+            if (feedUrl.length() > 0 && !feedUrl.equals(slideshow.feedUrl)) {
+                follow(slideshow, feedUrl, 0);
+            }
+            return shown(advance ? slideshow.getNextImagePath() : slideshow.getCurrentImagePath());
+        }
+
+        slideshow = new Slideshow(appWidgetId);
+        slideshows.put(appWidgetId, slideshow);
+
+        long lastFetched = slideshow.restore();
+        if (feedUrl.length() > 0) {
+            follow(slideshow, feedUrl, lastFetched);
+        }
+        return shown(slideshow.getCurrentImagePath());
+    }
+
+    /**
+     * Moves a widget on to its next image
+     *
+     * @param appWidgetId
+     *            The widget
+     * @return Local path to the image, or null if the widget has none or isn't tracked
+     */
+    public String nextImage(int appWidgetId) {
+        Slideshow slideshow = slideshows.get(appWidgetId);
+        return slideshow != null ? shown(slideshow.getNextImagePath()) : null;
+    }
+
+    /**
+     * Tells which image {@link #nextImage(int)} would return, without moving on
+     *
+     * @param appWidgetId
+     *            The widget
+     * @return Local path to the image, or null if the widget has none or isn't tracked
+     */
+    public String peekNextImage(int appWidgetId) {
+        Slideshow slideshow = slideshows.get(appWidgetId);
+        return slideshow != null ? slideshow.peekNextImagePath() : null;
+    }
+
+    /**
+     * @param appWidgetId
+     *            The widget
+     * @return true if the engine is tracking the widget
+     */
+    public boolean hasWidget(int appWidgetId) {
+        return slideshows.containsKey(appWidgetId);
+    }
+
+    /**
+     * @param appWidgetId
+     *            The widget
+     * @return The number of images the widget cycles through; 0 if it isn't tracked
+     */
+    public int getImageCount(int appWidgetId) {
+        Slideshow slideshow = slideshows.get(appWidgetId);
+        return slideshow != null ? slideshow.playlist.size() : 0;
+    }
+
+    /**
+     * @return The number of widgets being tracked
+     */
+    public int getWidgetCount() {
+        return slideshows.size();
+    }
+
+    /**
+     * Stops tracking a widget and deletes its saved playlist
+     *
+     * @param appWidgetId
+     *            The widget
+     */
+    public void removeWidget(int appWidgetId) {
+        Slideshow slideshow = slideshows.remove(appWidgetId);
+        if (slideshow != null) {
+            refresher.unsubscribe(appWidgetId);
+            if (slideshow.feedUrl != null) {
+                registry.release(slideshow.feedUrl);
+            }
+            slideshow.clearImages();
+        }
+    }
+
+    /**
+     * Refreshes a feed as soon as possible instead of waiting for its deadline
+     *
+     * @param feedUrl
+     *            The feed
+     */
+    public void refreshNow(String feedUrl) {
+        refresher.refreshNow(feedUrl);
+    }
+
+    /**
+     * Closes the file each widget keeps open for recording playlist changes, dropping its buffer. It's reopened by the widget's next change.
+     */
+    public void releaseIdleResources() {
+        synchronized (slideshows) {
+            Iterator<Slideshow> iterate = slideshows.values().iterator();
+            while (iterate.hasNext()) {
+                iterate.next().index.close();
+            }
+        }
+    }
+
+    /**
+     * @return The executor images are downloaded on
+     */
+    public DownloadExecutor getDownloads() {
+        return downloads;
+    }
+
+    /**
+     * Stops refreshing and downloading and closes every file. Downloads already running get a moment to finish. The engine can't be used afterwards.
+     */
+    public void close() {
+        refresher.shutdown();
+        downloads.shutdown(DOWNLOAD_SHUTDOWN_WAIT);
+        synchronized (slideshows) {
+            Iterator<Slideshow> iterate = slideshows.values().iterator();
+            while (iterate.hasNext()) {
+                iterate.next().index.close();
+            }
+        }
+        if (images != null) {
+            images.close();
+        }
+    }
+
+    /**
+     * @return The number of distinct feeds the widgets follow
+     */
+    public int getFeedCount() {
+        return registry.getFeedCount();
+    }
+
+    /**
+     * Points a widget at a feed, dropping the images of the feed it followed before. A widget without images starts from the feed's last result if other
+     * widgets already follow it, and the feed is only fetched once it's due.
+     *
+     * @param slideshow
+     *            The widget
+     * @param feedUrl
+     *            The feed
+     * @param lastFetched
+     *            When the widget's own copy of the feed was last fetched, or 0 if never
+     */
+    private void follow(Slideshow slideshow, String feedUrl, long lastFetched) {
+        if (slideshow.feedUrl != null) {
+            registry.release(slideshow.feedUrl);
+            slideshow.retireImagesNotIn(new HashSet<String>());
+        }
+        slideshow.feedUrl = feedUrl;
+
+        FeedRegistry.Result shared = registry.retain(feedUrl);
+        if (shared != null && !slideshow.hasImages() && images != null) {
+            for (int position = 0; position < shared.imageUrls.length; position++) {
+                String imageSrc = shared.imageUrls[position];
+                File path = images.get(imageSrc);
+                if (path != null) {
+                    slideshow.addImage(imageSrc, path.getPath(), position);
+                } else {
+                    joinDownload(imageSrc, slideshow);
+                }
+            }
+            slideshow.index.fetched(shared.fetched);
+            lastFetched = shared.fetched;
+        }
+
+        if (lastFetched > 0) {
+            refresher.subscribeFetched(slideshow.appWidgetId, feedUrl, clock.now() - lastFetched);
+        } else {
+            // nothing to show until the first fetch
+            refresher.subscribe(slideshow.appWidgetId, feedUrl, 0);
+        }
+    }
+
+    /**
+     * Marks an image as used in the disk cache, so images on screen are the last to be evicted
+     *
+     * @param path
+     *            Local path to the image about to be shown, or null
+     * @return path
+     */
+    private String shown(String path) {
+        if (path != null && images != null) {
+            images.touch(new File(path));
+        }
+        return path;
+    }
+
+    /**
+     * Drops every reference to an image that has left the disk cache
+     *
+     * @param path
+     *            Path to the evicted image
+     */
+    private void forgetImage(String path) {
+        sink.onImageDeleted(path);
+
+        synchronized (slideshows) {
+            Iterator<Slideshow> iterate = slideshows.values().iterator();
+            while (iterate.hasNext()) {
+                iterate.next().removeImage(path);
+            }
+        }
+    }
+
+    /**
+     * Downloads feedUrl and parses it for images, once for every widget showing that feed.
+     *
+     * The request is conditional on the feed having changed since the last successful pass, as long as the widgets still hold every image of that pass; if
+     * it hasn't changed, nothing is parsed. Otherwise, only images a widget doesn't already have are downloaded and images that dropped out of the feed are
+     * retired.
+     *
+     * Tested with flickr RSS feeds. See {@link FeedParser} for the supported enclosure types.
+     *
+     * @param feedUrl
+     *            String representing URL to a supported feed
+     * @param appWidgetIds
+     *            The widgets subscribed to the feed
+     * @return false if the feed couldn't be fetched or parsed and should be retried
+     */
+    private boolean getAndParseFeedUrl(String feedUrl, int[] appWidgetIds) {
+        final ArrayList<Slideshow> targets = new ArrayList<Slideshow>(appWidgetIds.length);
+        for (int appWidgetId : appWidgetIds) {
+            Slideshow slideshow = slideshows.get(appWidgetId);
+            if (slideshow != null) {
+                targets.add(slideshow);
+            }
+        }
+        if (targets.isEmpty() || images == null) {
+            return true;
+        }
+        FeedRegistry.Result last = registry.get(feedUrl);
+        // after a restart the registry is empty, but the feed's last listing was stored with its validators
+        final String[] lastImages = last != null ? last.imageUrls : feedState.getImageUrls(feedUrl);
+        boolean haveResults = haveEveryImage(targets, lastImages);
+
+        String host = hostOf(feedUrl);
+        if (host != null && !breaker.allow(host)) {
+            log.info("Host failing, feed deferred: " + feedUrl);
+            return false;
+        }
+
+        log.info("Updating Url: feedUrl=[" + feedUrl + "], widgets=" + targets.size());
+        final HashSet<String> feedPaths = new HashSet<String>();
+        final ArrayList<String> feedImages = new ArrayList<String>();
+        try {
+            long fetchStart = Metrics.start();
+            // a 304 only keeps what the widgets already have, so with anything missing the feed is fetched in full
+            HttpTransport.Response response;
+            if (haveResults) {
+                response = transport.get(feedUrl, feedState.getETag(feedUrl), feedState.getLastModified(feedUrl));
+            } else {
+                response = transport.get(feedUrl, null, null);
+            }
+
+            try {
+                Metrics.stop(Metrics.Histogram.FEED_FETCH_MICROS, fetchStart);
+                Metrics.count(Metrics.Counter.FEEDS_FETCHED);
+                if (host != null && response.getStatus() < 500) {
+                    hostAnswered(host);
+                }
+                if (response.getStatus() == 304) {
+                    log.info("Feed not modified: " + feedUrl);
+                    Metrics.count(Metrics.Counter.FEEDS_NOT_MODIFIED);
+                    if (!refresher.isShutdown()) {
+                        long now = clock.now();
+                        // confirmed fresh, so a restart doesn't count from the last full pass and refresh again straight away
+                        for (Slideshow slideshow : targets) {
+                            slideshow.index.fetched(now);
+                        }
+                        if (registry.get(feedUrl) != null) {
+                            registry.unchanged(feedUrl, now);
+                        } else {
+                            // widgets that start following the feed from here on are filled from its stored listing
+                            registry.publish(feedUrl, Arrays.asList(lastImages), now);
+                        }
+                    }
+                    return true;
+                }
+                if (response.getStatus() >= 400) {
+                    throw new HttpStatusException(response.getStatus(), feedUrl);
+                }
+
+                InputStream in = response.getBody();
+                long parseStart = Metrics.start();
+                try {
+                    // downloads start as each enclosure is parsed
+                    FeedParser.parse(in, null, new FeedParser.EnclosureListener() {
+                        private int position = 0;
+
+                        public boolean onEnclosure(String imageSrc, String type) {
+                            if (refresher.isShutdown()) {
+                                return false;
+                            }
+
+                            String imagePath = images.getFile(imageSrc).getPath();
+                            if (!feedPaths.add(imagePath)) {
+                                // listed twice
+                                return true;
+                            }
+                            feedImages.add(imageSrc);
+
+                            ArrayList<Slideshow> missing = null;
+                            for (Slideshow slideshow : targets) {
+                                if (!slideshow.hasImage(imagePath)) {
+                                    if (missing == null) {
+                                        missing = new ArrayList<Slideshow>(targets.size());
+                                    }
+                                    missing.add(slideshow);
+                                }
+                            }
+                            if (missing != null) {
+                                downloadImageToCache(imageSrc, position, missing);
+                            }
+                            position++;
+                            return true;
+                        }
+                    });
+                } finally {
+                    in.close();
+                }
+                Metrics.stop(Metrics.Histogram.FEED_PARSE_MICROS, parseStart);
+                Metrics.record(Metrics.Histogram.ENCLOSURES_PER_FEED, feedPaths.size());
+                Metrics.count(Metrics.Counter.ENCLOSURES_FOUND, feedPaths.size());
+
+                if (!refresher.isShutdown()) {
+                    long now = clock.now();
+                    for (Slideshow slideshow : targets) {
+                        slideshow.retireImagesNotIn(feedPaths);
+                        slideshow.index.fetched(now);
+                    }
+                    // widgets that start following the feed before its next pass begin from here
+                    registry.publish(feedUrl, feedImages, now);
+                    // only remember the validators once the whole feed has been handled
+                    feedState.store(feedUrl, response.getETag(), response.getLastModified(), feedImages.toArray(new String[feedImages.size()]));
+                }
+            } finally {
+                response.close();
+            }
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Failed during parsing feed.", e);
+            Metrics.count(Metrics.Counter.FEED_FAILURES);
+            if (host != null) {
+                if (isHostFailure(e)) {
+                    hostFailed(host);
+                } else {
+                    // settles the breaker's trial if this was it and no response got as far as hostAnswered
+                    breaker.release(host);
+                }
+            }
+            return false;
+        } finally {
+            sink.onFeedRefreshed(feedUrl);
+        }
+
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Downloads: queued=" + downloads.getQueueDepth() + ", active=" + downloads.getActiveDownloads() + ", rejected="
+                    + downloads.getRejectedCount());
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the widgets still hold every image of the feed's last pass. Images evicted from the disk cache since then have to be fetched again, and
+     * a conditional request answered with a 304 wouldn't list them.
+     *
+     * @param targets
+     *            The widgets following the feed
+     * @param imageUrls
+     *            The images the feed's last pass listed, or null if none is known
+     * @return true if nothing is missing
+     */
+    private boolean haveEveryImage(List<Slideshow> targets, String[] imageUrls) {
+        if (imageUrls == null) {
+            return false;
+        }
+        for (String imageSrc : imageUrls) {
+            String imagePath = images.getFile(imageSrc).getPath();
+            for (Slideshow slideshow : targets) {
+                if (!slideshow.hasImage(imagePath)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Downloads an image, referenced by imageSrc, to the shared disk cache
+     *
+     * Images paths are kept in each widget's {@code playlist}
+     *
+     * If an {@link ImageNormalizer} is set, each image is rewritten by it once, before it's committed to the cache.
+     *
+     * @param imageSrc
+     *            URL to the actual image to download. Not tested for supported type.
+     * @param feedPosition
+     *            Where the image appears in the feed
+     * @param targets
+     *            The widgets to add the image to once it's downloaded
+     *
+     */
+    private void downloadImageToCache(String imageSrc, int feedPosition, List<Slideshow> targets) {
+        String host;
+        try {
+            host = new URL(imageSrc).getHost();
+        } catch (MalformedURLException e) {
+            log.log(Level.SEVERE, "Bad image url: " + imageSrc, e);
+            return;
+        }
+
+        PendingDownload download;
+        synchronized (pending) {
+            PendingDownload inFlight = pending.get(imageSrc);
+            if (inFlight != null) {
+                // another feed pass is already fetching it, or it's waiting for its host to recover; share the one download
+                inFlight.targets.addAll(targets);
+                return;
+            }
+            download = new PendingDownload(host, feedPosition, targets);
+            // nothing is sent to a host that keeps failing; it's retried once the host is back
+            download.parked = breaker.isOpen(host);
+            pending.put(imageSrc, download);
+        }
+        if (!download.parked) {
+            submitDownload(imageSrc, download);
+        }
+    }
+
+    // put this in the background, on the executor shared by all widgets
+    // this blocks the caller while the download queue is full
+    private void submitDownload(final String imageSrc, final PendingDownload download) {
+        boolean accepted = downloads.submit(download.host, new Runnable() {
+
+            public void run() {
+                File path;
+                try {
+                    // named after the URL, so widgets showing the same image share the file
+                    // NOTE: if the image at the URL changes, this won't
+                    // download it again
+                    path = images.get(imageSrc);
+                    if (path == null) {
+                        if (!breaker.allow(download.host)) {
+                            // the host started failing while this was queued
+                            park(imageSrc);
+                            return;
+                        }
+                        path = images.getFile(imageSrc);
+                        long downloadStart = Metrics.start();
+                        long size = download(imageSrc, download.host, path);
+                        Metrics.stop(Metrics.Histogram.DOWNLOAD_MICROS, downloadStart);
+                        Metrics.record(Metrics.Histogram.DOWNLOAD_BYTES, size);
+                        Metrics.count(Metrics.Counter.DOWNLOADS);
+                        size = normalize(path, size);
+                        images.commit(imageSrc, size);
+                    }
+                } catch (Exception e) {
+                    log.log(Level.SEVERE, "Failed to download: " + imageSrc, e);
+                    Metrics.count(Metrics.Counter.DOWNLOAD_FAILURES);
+                    if (isHostFailure(e)) {
+                        // kept for a retry of just this image once the host is back
+                        park(imageSrc);
+                        hostFailed(download.host);
+                    } else {
+                        // settles the breaker's trial if this was it and no response got as far as hostAnswered
+                        breaker.release(download.host);
+                        finishDownload(imageSrc);
+                    }
+                    return;
+                }
+
+                finishDownload(imageSrc);
+                // keep track of it, for the widgets still around
+                for (Slideshow slideshow : download.targets) {
+                    if (slideshows.get(slideshow.appWidgetId) == slideshow && slideshow.addImage(imageSrc, path.getPath(), download.feedPosition)) {
+                        sink.onFirstImage(slideshow.appWidgetId);
+                    }
+                }
+            }
+        }, DOWNLOAD_SUBMIT_WAIT);
+
+        if (!accepted) {
+            finishDownload(imageSrc);
+            log.warning("Download queue full, skipped: " + imageSrc);
+        }
+    }
+
+    // holds a download back until its host recovers
+    private void park(String imageSrc) {
+        synchronized (pending) {
+            PendingDownload download = pending.get(imageSrc);
+            if (download != null) {
+                download.parked = true;
+            }
+        }
+    }
+
+    /**
+     * Records a request that failed because of its host or the network. If that opens the host's breaker, the downloads held back from it are tried
+     * again once the cool-down is over.
+     *
+     * @param host
+     *            The host
+     */
+    private void hostFailed(final String host) {
+        long coolDown = breaker.failure(host);
+        if (coolDown > 0) {
+            log.warning("Holding back requests to " + host + " for " + coolDown / 1000 + "s");
+            refresher.schedule(new Runnable() {
+                public void run() {
+                    // the first of these is the breaker's trial; the rest wait for its outcome
+                    retryParkedDownloads(host);
+                }
+            }, coolDown);
+        }
+    }
+
+    /**
+     * Records a request its host answered. If the host had been failing, the downloads held back from it are retried straight away.
+     *
+     * @param host
+     *            The host
+     */
+    private void hostAnswered(final String host) {
+        if (breaker.success(host)) {
+            log.info("Host recovered: " + host);
+            refresher.schedule(new Runnable() {
+                public void run() {
+                    retryParkedDownloads(host);
+                }
+            }, 0);
+        }
+    }
+
+    // runs on the refresh thread, since submitting can block while the download queue is full
+    private void retryParkedDownloads(String host) {
+        HashMap<String, PendingDownload> retries = new HashMap<String, PendingDownload>();
+        synchronized (pending) {
+            Iterator<Map.Entry<String, PendingDownload>> iterator = pending.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, PendingDownload> entry = iterator.next();
+                PendingDownload download = entry.getValue();
+                if (download.parked && download.host.equals(host)) {
+                    download.parked = false;
+                    retries.put(entry.getKey(), download);
+                }
+            }
+        }
+        for (Map.Entry<String, PendingDownload> retry : retries.entrySet()) {
+            submitDownload(retry.getKey(), retry.getValue());
+        }
+    }
+
+    // failures that say something about the host rather than the request
+    private static boolean isHostFailure(Exception e) {
+        if (e instanceof HttpStatusException) {
+            return ((HttpStatusException) e).status >= 500;
+        }
+        return e instanceof IOException;
+    }
+
+    // the host of a URL, or null if it isn't one
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds a widget to the download of an image, if one is queued or running
+     *
+     * @param imageSrc
+     *            URL of the image
+     * @param slideshow
+     *            The widget to add the image to once it's downloaded
+     */
+    private void joinDownload(String imageSrc, Slideshow slideshow) {
+        synchronized (pending) {
+            PendingDownload inFlight = pending.get(imageSrc);
+            if (inFlight != null) {
+                inFlight.targets.add(slideshow);
+            }
+        }
+    }
+
+    // no widget can join the download once this returns
+    private PendingDownload finishDownload(String imageSrc) {
+        synchronized (pending) {
+            return pending.remove(imageSrc);
+        }
+    }
+
+    // rewrites a downloaded image, dropping it if it can't be decoded
+    private long normalize(File path, long size) throws UnusableImageException {
+        ImageNormalizer normalizer = this.normalizer;
+        if (normalizer == null) {
+            return size;
+        }
+        long normalizeStart = Metrics.start();
+        try {
+            size = normalizer.normalize(path);
+        } catch (IOException e) {
+            path.delete();
+            throw new UnusableImageException(path, e);
+        }
+        Metrics.stop(Metrics.Histogram.NORMALIZE_MICROS, normalizeStart);
+        Metrics.record(Metrics.Histogram.NORMALIZED_BYTES, size);
+        return size;
+    }
+
+    // streams to a temp file and renames it into place once complete
+    private long download(String imageSrc, String host, File path) throws IOException {
+        HttpTransport.Response response = transport.get(imageSrc, null, null);
+        try {
+            if (response.getStatus() < 500) {
+                hostAnswered(host);
+            }
+            if (response.getStatus() != 200) {
+                throw new HttpStatusException(response.getStatus(), imageSrc);
+            }
+            InputStream in = response.getBody();
+            try {
+                return ImageTransfer.copy(in, response.getContentLength(), path);
+            } finally {
+                in.close();
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * A download and the widgets waiting for it
+     */
+    private static class PendingDownload {
+        final String host;
+        final int feedPosition;
+
+        // guarded by the pending map
+        final ArrayList<Slideshow> targets;
+        boolean parked;
+
+        PendingDownload(String host, int feedPosition, List<Slideshow> targets) {
+            this.host = host;
+            this.feedPosition = feedPosition;
+            this.targets = new ArrayList<Slideshow>(targets);
+        }
+    }
+
+    /**
+     * A downloaded image that couldn't be decoded; retrying won't help
+     */
+    private static class UnusableImageException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnusableImageException(File image, IOException cause) {
+            super("Unusable image: " + image, cause);
+        }
+    }
+
+    /**
+     * A response with a status that can't be used
+     */
+    private static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpStatusException(int status, String url) {
+            super("HTTP " + status + " for " + url);
+            this.status = status;
+        }
+    }
+
+    /**
+     * The images a single widget cycles through, and where it is in that cycle
+     */
+    private class Slideshow {
+        private int appWidgetId;
+
+        // the feed the widget follows; only changed by showWidget
+        private String feedUrl;
+
+        // safe to read from any thread; changes are published as a new snapshot
+        private Playlist playlist;
+
+        // on-disk copy of the above
+        private PlaylistIndex index;
+
+        /**
+         * Constructor for the image list of a single widget
+         *
+         * @param appWidgetId
+         *            The App Widget identifier this slideshow is tied to
+         */
+        public Slideshow(int appWidgetId) {
+            this.appWidgetId = appWidgetId;
+            // from the engine's clock, so a simulated run shuffles the same way every time
+            playlist = new Playlist(true, clock.now() + appWidgetId);
+            index = new PlaylistIndex(new File(playlistDir, appWidgetId + ".idx"));
+        }
+
+        /**
+         * Reloads the playlist saved by a previous run of the engine, if any
+         *
+         * @return when the feed was last fetched for this widget, or 0 if never
+         */
+        public long restore() {
+            List<PlaylistIndex.Entry> entries = index.load();
+            for (PlaylistIndex.Entry entry : entries) {
+                playlist.add(entry.path);
+            }
+            String current = index.getCurrent();
+            if (current != null) {
+                playlist.setCurrent(current);
+            }
+            return index.getLastFetched();
+        }
+
+        /**
+         * @return true if the widget has at least one image
+         */
+        public boolean hasImages() {
+            return !playlist.isEmpty();
+        }
+
+        /**
+         * @param path
+         *            Local path to an image
+         * @return true if the widget already has the image
+         */
+        public boolean hasImage(String path) {
+            return playlist.contains(path);
+        }
+
+        /**
+         * Adds a downloaded image to this widget, unless it's already there
+         *
+         * @param url
+         *            Where the image was downloaded from
+         * @param path
+         *            Local path to the image
+         * @param feedPosition
+         *            Where the image appears in the feed
+         * @return true if this is the first image the widget has
+         */
+        public boolean addImage(String url, String path, int feedPosition) {
+            int size = playlist.add(path);
+            if (size == 0) {
+                return false;
+            }
+            index.added(url, path, feedPosition);
+            return size == 1;
+        }
+
+        /**
+         * Removes an image from this widget
+         *
+         * @param path
+         *            Local path to the image
+         */
+        public void removeImage(String path) {
+            if (playlist.remove(path)) {
+                index.removed(path);
+            }
+        }
+
+        /**
+         * Releases this widget's images and deletes its saved playlist. The files themselves are shared with other widgets and stay in the disk cache until
+         * evicted.
+         */
+        public void clearImages() {
+            for (String path : playlist.snapshot()) {
+                sink.onImageRemoved(path);
+            }
+            playlist.clear();
+            index.delete();
+        }
+
+        /**
+         * Moves on to the next image for the widget. Every image is shown once, in random order, before any is repeated.
+         *
+         * @return string representing path to next image to display in widget, or null if there are no images yet
+         */
+        public String getNextImagePath() {
+            String path = playlist.next();
+            if (path != null) {
+                index.cursorMoved(path);
+            }
+            return path;
+        }
+
+        /**
+         * Determines which image {@link #getNextImagePath} will return, without moving on to it
+         *
+         * @return string representing path to the upcoming image, or null if there are no images yet
+         */
+        public String peekNextImagePath() {
+            return playlist.peekNext();
+        }
+
+        /**
+         * Used to retrieve the path to the current image, the most recent return from {@link #getNextImagePath}
+         *
+         * @return String representing the local path to the image, or null if there are no images yet
+         */
+        public String getCurrentImagePath() {
+            return playlist.current();
+        }
+
+        /**
+         * Drops images that are no longer part of the feed. The files stay in the disk cache in case another widget still shows them.
+         *
+         * @param feedPaths
+         *            Local paths of every image in the latest feed
+         */
+        private void retireImagesNotIn(HashSet<String> feedPaths) {
+            for (String path : playlist.snapshot()) {
+                if (!feedPaths.contains(path) && playlist.remove(path)) {
+                    index.removed(path);
+                    sink.onImageRemoved(path);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.mamlambo.imageswidget.core;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * {@link HttpTransport} on top of {@link HttpURLConnection}, which is available both on Android and on a desktop JVM.
+ *
+ * One instance is shared by every feed and image fetch. Connections are kept alive between requests: a response's body is read to the end before it's released,
+ * which hands the socket back to the platform's connection pool instead of closing it, so the images of a feed reuse the connection to their host. How many
+ * requests run against one host at once is up to the caller; {@link DownloadExecutor} caps it for images. Every request has connect and read timeouts so a
+ * stalled server can't hold a thread forever, responses are accepted gzip-compressed, and bodies larger than a set size are refused. The time each request
+ * waits for its response headers, the requests that fail outright and the connections that can't be handed back to the pool are recorded in {@link Metrics}.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    // defaults for the no-argument constructor
+    private static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+    private static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+    private static final long DEFAULT_MAX_BODY_BYTES = 4 * 1024 * 1024;
+
+    // unread body drained on release so the connection can be reused; past this, dropping the connection is cheaper
+    private static final int DRAIN_LIMIT = 16 * 1024;
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final long maxBodyBytes;
+
+    public UrlConnectionTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAX_BODY_BYTES);
+    }
+
+    /**
+     * @param connectTimeout
+     *            Longest to wait for a connection, in milliseconds
+     * @param readTimeout
+     *            Longest to wait for data on an open connection, in milliseconds
+     * @param maxBodyBytes
+     *            Largest body, after decompression, a response may have
+     */
+    public UrlConnectionTransport(int connectTimeout, int readTimeout, long maxBodyBytes) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    public Response get(String url, String etag, String lastModified) throws IOException {
+        long start = Metrics.start();
+        HttpURLConnection connection = null;
+        boolean handedOut = false;
+        try {
+            URL target = new URL(url);
+            connection = (HttpURLConnection) target.openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            // set explicitly, so the body is handed over compressed and decoded here on every platform
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+
+            int status = connection.getResponseCode();
+            if (connection.getContentLength() > maxBodyBytes) {
+                throw new IOException("Response too large: " + connection.getContentLength() + " bytes from " + url);
+            }
+
+            // the whole fetch is timed by the caller; this is the part spent connecting and waiting on the server
+            Metrics.stop(Metrics.Histogram.RESPONSE_HEADERS_MICROS, start);
+            Response response = new PooledResponse(connection, status);
+            handedOut = true;
+            return response;
+        } catch (IOException e) {
+            Metrics.count(Metrics.Counter.REQUEST_FAILURES);
+            throw e;
+        } finally {
+            if (!handedOut && connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private class PooledResponse implements Response {
+        private final HttpURLConnection connection;
+        private final int status;
+        private final boolean gzipped;
+
+        // the raw stream and what the caller reads, once the body has been asked for
+        private InputStream raw;
+        private CappedInputStream body;
+        private boolean closed;
+
+        PooledResponse(HttpURLConnection connection, int status) {
+            this.connection = connection;
+            this.status = status;
+            gzipped = "gzip".equalsIgnoreCase(connection.getContentEncoding());
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getContentLength() {
+            // the header counts the compressed bytes
+            return gzipped ? -1 : connection.getContentLength();
+        }
+
+        public String getETag() {
+            return connection.getHeaderField("ETag");
+        }
+
+        public String getLastModified() {
+            return connection.getHeaderField("Last-Modified");
+        }
+
+        public synchronized InputStream getBody() throws IOException {
+            if (body == null) {
+                raw = connection.getInputStream();
+                body = new CappedInputStream(gzipped ? new GZIPInputStream(new UnclosedInputStream(raw)) : new UnclosedInputStream(raw), maxBodyBytes);
+            }
+            return body;
+        }
+
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            boolean reusable = false;
+            try {
+                if (raw == null) {
+                    // nobody read the body, e.g. a 304 or an error
+                    raw = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+                }
+                reusable = raw == null || drain(raw);
+                if (raw != null) {
+                    raw.close();
+                }
+            } catch (IOException e) {
+                reusable = false;
+            }
+            if (!reusable) {
+                connection.disconnect();
+                Metrics.count(Metrics.Counter.CONNECTIONS_DROPPED);
+            }
+        }
+    }
+
+    // reads what's left of in, up to DRAIN_LIMIT; true if it reached the end
+    private static boolean drain(InputStream in) throws IOException {
+        byte[] skip = new byte[1024];
+        int drained = 0;
+        int read;
+        while ((read = in.read(skip)) != -1) {
+            drained += read;
+            if (drained > DRAIN_LIMIT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Leaves the connection's stream open when the caller closes what it read from; the response drains and releases it
+     */
+    private static class UnclosedInputStream extends FilterInputStream {
+        UnclosedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Fails once more than a set number of bytes have been read
+     */
+    private static class CappedInputStream extends FilterInputStream {
+        private final long limit;
+        private long count;
+
+        CappedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                counted(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counted(skipped);
+            return skipped;
+        }
+
+        private void counted(long bytes) throws IOException {
+            count += bytes;
+            if (count > limit) {
+                throw new IOException("Response body larger than " + limit + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.mamlambo.imageswidget;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * A least-recently-used cache of decoded images, bounded by the number of bytes the bitmaps hold rather than by entry count.
+ *
+ * Entries are keyed by the image path and the size it was decoded for, so the same file shown at two sizes is cached twice. Evicted bitmaps are not recycled
+ * since a {@code RemoteViews} may still be holding on to them.
+ */
+public class BitmapCache {
+    private final LinkedHashMap<Key, Bitmap> map = new LinkedHashMap<Key, Bitmap>(16, 0.75f, true);
+    private int maxBytes;
+    private int bytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxBytes
+     *            Upper bound on the pixel bytes held by the cache
+     */
+    public BitmapCache(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up a decoded image, marking it as recently used
+     *
+     * @param path
+     *            Path to the image file
+     * @param width
+     *            Width the image was decoded for
+     * @param height
+     *            Height the image was decoded for
+     * @return the cached Bitmap, or null if it isn't cached
+     */
+    public synchronized Bitmap get(String path, int width, int height) {
+        Bitmap bitmap = map.get(new Key(path, width, height));
+        if (bitmap != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Checks for a decoded image without counting a hit or miss or changing its recency
+     *
+     * @param path
+     *            Path to the image file
+     * @param width
+     *            Width the image was decoded for
+     * @param height
+     *            Height the image was decoded for
+     * @return true if the image is cached
+     */
+    public synchronized boolean contains(String path, int width, int height) {
+        return map.containsKey(new Key(path, width, height));
+    }
+
+    /**
+     * Adds a decoded image, evicting the least recently used entries if the cache grows beyond its limit
+     *
+     * @param path
+     *            Path to the image file
+     * @param width
+     *            Width the image was decoded for
+     * @param height
+     *            Height the image was decoded for
+     * @param bitmap
+     *            The decoded image
+     */
+    public synchronized void put(String path, int width, int height, Bitmap bitmap) {
+        int size = sizeOf(bitmap);
+        if (size > maxBytes) {
+            // would just flush everything else out
+            return;
+        }
+
+        Bitmap previous = map.put(new Key(path, width, height), bitmap);
+        bytes += size;
+        if (previous != null) {
+            bytes -= sizeOf(previous);
+        }
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Drops every size of a particular image, for example once the file has been deleted
+     *
+     * @param path
+     *            Path to the image file
+     */
+    public synchronized void remove(String path) {
+        Iterator<Map.Entry<Key, Bitmap>> entries = map.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, Bitmap> entry = entries.next();
+            if (entry.getKey().path.equals(path)) {
+                bytes -= sizeOf(entry.getValue());
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Evicts least recently used entries until the cache holds no more than targetBytes
+     *
+     * @param targetBytes
+     *            Size to shrink to; 0 empties the cache
+     */
+    public synchronized void trimToSize(int targetBytes) {
+        Iterator<Map.Entry<Key, Bitmap>> entries = map.entrySet().iterator();
+        while (bytes > targetBytes && entries.hasNext()) {
+            Map.Entry<Key, Bitmap> entry = entries.next();
+            bytes -= sizeOf(entry.getValue());
+            entries.remove();
+        }
+    }
+
+    /**
+     * Empties the cache
+     */
+    public void evictAll() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return The pixel bytes currently held
+     */
+    public synchronized int size() {
+        return bytes;
+    }
+
+    /**
+     * Changes the upper bound, evicting least recently used entries if the cache now holds more
+     *
+     * @param maxBytes
+     *            The new upper bound on the pixel bytes held
+     */
+    public synchronized void setMaxSize(int maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * @return The configured upper bound, in bytes
+     */
+    public synchronized int maxSize() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The number of lookups that found an entry
+     */
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups that found nothing
+     */
+    public synchronized long missCount() {
+        return misses;
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static final class Key {
+        final String path;
+        final int width;
+        final int height;
+
+        Key(String path, int width, int height) {
+            this.path = path;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return width == other.width && height == other.height && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return (path.hashCode() * 31 + width) * 31 + height;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.mamlambo.imageswidget;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.mamlambo.imageswidget.core.ImageTransfer;
+
+/**
+ * Decodes cached images at the size the widget actually shows them.
+ *
+ * Image bounds are read first so the full-resolution pixels are never loaded; the file is then decoded with the largest power-of-two sample size that still
+ * covers the target. Optionally, the result is scaled to fit and saved as a thumbnail next to the original so later decodes read a much smaller file.
+ */
+public class BitmapDecoder {
+    private static final String LOG_TAG = "BitmapDecoder";
+    private static final String THUMBNAIL_SUFFIX = ".thumb";
+    private static final int THUMBNAIL_QUALITY = 85;
+
+    private BitmapDecoder() {
+    }
+
+    /**
+     * Decodes an image no smaller than necessary to fill reqWidth x reqHeight
+     *
+     * @param path
+     *            Path to the image file
+     * @param reqWidth
+     *            Target width in pixels
+     * @param reqHeight
+     *            Target height in pixels
+     * @return the decoded Bitmap, or null if the file couldn't be decoded
+     */
+    public static Bitmap decodeSampled(String path, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    /**
+     * Decodes an image for display at reqWidth x reqHeight, using (and optionally creating) a pre-scaled thumbnail stored next to the original
+     *
+     * @param path
+     *            Path to the original image file
+     * @param reqWidth
+     *            Target width in pixels
+     * @param reqHeight
+     *            Target height in pixels
+     * @param storeThumbnail
+     *            True to save a thumbnail if one doesn't exist yet and the image is larger than the target
+     * @return the decoded Bitmap, or null if the image couldn't be decoded
+     */
+    public static Bitmap decodeForDisplay(String path, int reqWidth, int reqHeight, boolean storeThumbnail) {
+        File thumbnail = getThumbnailFile(path, reqWidth, reqHeight);
+        if (thumbnail.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath());
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+
+        Bitmap bitmap = decodeSampled(path, reqWidth, reqHeight);
+        if (bitmap == null || !storeThumbnail) {
+            return bitmap;
+        }
+
+        Bitmap scaled = scaleToFit(bitmap, reqWidth, reqHeight);
+        if (scaled != bitmap) {
+            // an image normalized when it was downloaded already fits, and is its own thumbnail
+            writeThumbnail(scaled, thumbnail);
+        }
+        return scaled;
+    }
+
+    /**
+     * Removes the thumbnail created for an image at a particular size, if any
+     *
+     * @param path
+     *            Path to the original image file
+     * @param reqWidth
+     *            Target width the thumbnail was created for
+     * @param reqHeight
+     *            Target height the thumbnail was created for
+     */
+    public static void deleteThumbnail(String path, int reqWidth, int reqHeight) {
+        getThumbnailFile(path, reqWidth, reqHeight).delete();
+    }
+
+    /**
+     * Picks the largest power-of-two sample size that keeps the decoded image at least as big as the target in both dimensions
+     *
+     * @param width
+     *            Width of the source image
+     * @param height
+     *            Height of the source image
+     * @param reqWidth
+     *            Target width
+     * @param reqHeight
+     *            Target height
+     * @return a sample size suitable for {@code BitmapFactory.Options.inSampleSize}
+     */
+    public static int computeSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static File getThumbnailFile(String path, int reqWidth, int reqHeight) {
+        return new File(path + "-" + reqWidth + "x" + reqHeight + THUMBNAIL_SUFFIX);
+    }
+
+    private static Bitmap scaleToFit(Bitmap bitmap, int reqWidth, int reqHeight) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width <= reqWidth && height <= reqHeight) {
+            return bitmap;
+        }
+
+        float scale = Math.min((float) reqWidth / width, (float) reqHeight / height);
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    // the prefetch and command threads may both write the same thumbnail, so each writes its own temp file and the last rename wins
+    private static void writeThumbnail(Bitmap bitmap, File thumbnail) {
+        File temp = null;
+        try {
+            temp = File.createTempFile(thumbnail.getName(), ImageTransfer.TEMP_SUFFIX, thumbnail.getParentFile());
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(thumbnail)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write thumbnail: " + thumbnail, e);
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.mamlambo.imageswidget;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+
+import com.mamlambo.imageswidget.core.ExifOrientation;
+import com.mamlambo.imageswidget.core.ImageNormalizer;
+import com.mamlambo.imageswidget.core.ImageTransfer;
+
+/**
+ * Shrinks each downloaded image to the widget's size before it's cached.
+ *
+ * The image is decoded no larger than needed, turned upright according to its EXIF orientation, scaled to fit the widget and re-encoded: as JPEG at the
+ * highest quality that fits the byte budget, or as PNG if it has transparency. Every later decode then reads a small file at full resolution, and the bitmap
+ * sent to the widget host is already the right size. Images that are already upright, small enough and within the budget are left as they are.
+ */
+public class BitmapNormalizer implements ImageNormalizer {
+    // JPEG quality to start from, and how far to step down towards the floor while over budget
+    private static final int MAX_QUALITY = 85;
+    private static final int MIN_QUALITY = 50;
+    private static final int QUALITY_STEP = 10;
+
+    private final int width;
+    private final int height;
+    private final int maxBytes;
+
+    /**
+     * @param width
+     *            Widest the image is shown, in pixels
+     * @param height
+     *            Tallest the image is shown, in pixels
+     * @param maxBytes
+     *            Size to get JPEGs under, if the quality floor allows it
+     */
+    public BitmapNormalizer(int width, int height, int maxBytes) {
+        this.width = width;
+        this.height = height;
+        this.maxBytes = maxBytes;
+    }
+
+    public long normalize(File image) throws IOException {
+        String path = image.getPath();
+        long size = image.length();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not a supported image: " + image);
+        }
+
+        int orientation = ExifOrientation.read(image);
+        int rotation = ExifOrientation.getRotation(orientation);
+        boolean mirrored = ExifOrientation.isMirrored(orientation);
+        boolean sideways = rotation == 90 || rotation == 270;
+
+        // bounds as shown, once turned upright
+        int shownWidth = sideways ? options.outHeight : options.outWidth;
+        int shownHeight = sideways ? options.outWidth : options.outHeight;
+        boolean fits = shownWidth <= width && shownHeight <= height;
+        if (orientation == ExifOrientation.NORMAL && fits && size <= maxBytes) {
+            // re-encoding would only lose quality
+            return size;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = BitmapDecoder.computeSampleSize(shownWidth, shownHeight, width, height);
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap == null) {
+            throw new IOException("Failed to decode " + image);
+        }
+
+        bitmap = transform(bitmap, rotation, mirrored);
+        byte[] encoded;
+        try {
+            encoded = encode(bitmap);
+        } finally {
+            bitmap.recycle();
+        }
+
+        if (orientation == ExifOrientation.NORMAL && fits && encoded.length >= size) {
+            // only re-encoded to save space, and it didn't
+            return size;
+        }
+        replace(image, encoded);
+        return encoded.length;
+    }
+
+    // scales the decoded image to fit, turns it upright and mirrors it if needed, all in one pass
+    private Bitmap transform(Bitmap bitmap, int rotation, boolean mirrored) {
+        int decodedWidth = bitmap.getWidth();
+        int decodedHeight = bitmap.getHeight();
+        boolean sideways = rotation == 90 || rotation == 270;
+        float scale = Math.min(1f, Math.min((float) width / (sideways ? decodedHeight : decodedWidth), (float) height
+                / (sideways ? decodedWidth : decodedHeight)));
+        if (scale == 1f && rotation == 0 && !mirrored) {
+            return bitmap;
+        }
+
+        Matrix matrix = new Matrix();
+        matrix.postScale(scale, scale);
+        matrix.postRotate(rotation);
+        if (mirrored) {
+            matrix.postScale(-1, 1);
+        }
+        Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, decodedWidth, decodedHeight, matrix, true);
+        if (transformed != bitmap) {
+            bitmap.recycle();
+        }
+        return transformed;
+    }
+
+    private byte[] encode(Bitmap bitmap) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(maxBytes);
+        if (bitmap.hasAlpha()) {
+            // JPEG would lose the transparency
+            if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+                throw new IOException("Failed to encode PNG");
+            }
+            return out.toByteArray();
+        }
+
+        for (int quality = MAX_QUALITY;; quality -= QUALITY_STEP) {
+            out.reset();
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+                throw new IOException("Failed to encode JPEG");
+            }
+            if (out.size() <= maxBytes || quality - QUALITY_STEP < MIN_QUALITY) {
+                return out.toByteArray();
+            }
+        }
+    }
+
+    // writes next to the original and renames over it, so the cache file is never half written
+    private static void replace(File image, byte[] data) throws IOException {
+        File temp = new File(image.getPath() + ImageTransfer.TEMP_SUFFIX);
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(image)) {
+                throw new IOException("Failed to replace " + image);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.mamlambo.imageswidget;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.mamlambo.imageswidget.core.FeedStateStore;
+
+/**
+ * Persists the HTTP cache validators (ETag and Last-Modified) last seen for each feed, so a refresh can ask the server whether anything changed, and the
+ * images each feed listed.
+ */
+public class FeedValidators implements FeedStateStore {
+    private static final String PREFS_NAME = "ImagesWidgetFeeds";
+    private static final String PREFS_ETAG_PATTERN = "ETag-%s";
+    private static final String PREFS_LAST_MODIFIED_PATTERN = "LastModified-%s";
+    private static final String PREFS_IMAGES_PATTERN = "Images-%s";
+
+    // URLs can't contain a newline, so it separates them
+    private static final String IMAGE_SEPARATOR = "\n";
+
+    private final SharedPreferences prefs;
+
+    /**
+     * @param context
+     *            Context to operate under
+     */
+    public FeedValidators(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, 0);
+    }
+
+    public String getETag(String feedUrl) {
+        return prefs.getString(String.format(PREFS_ETAG_PATTERN, feedUrl), null);
+    }
+
+    public String getLastModified(String feedUrl) {
+        return prefs.getString(String.format(PREFS_LAST_MODIFIED_PATTERN, feedUrl), null);
+    }
+
+    public String[] getImageUrls(String feedUrl) {
+        String images = prefs.getString(String.format(PREFS_IMAGES_PATTERN, feedUrl), null);
+        if (images == null) {
+            return null;
+        }
+        return images.length() > 0 ? images.split(IMAGE_SEPARATOR) : new String[0];
+    }
+
+    public void store(String feedUrl, String etag, String lastModified, String[] imageUrls) {
+        StringBuilder images = new StringBuilder();
+        for (String imageUrl : imageUrls) {
+            if (images.length() > 0) {
+                images.append(IMAGE_SEPARATOR);
+            }
+            images.append(imageUrl);
+        }
+
+        SharedPreferences.Editor edit = prefs.edit();
+        putOrRemove(edit, String.format(PREFS_ETAG_PATTERN, feedUrl), etag);
+        putOrRemove(edit, String.format(PREFS_LAST_MODIFIED_PATTERN, feedUrl), lastModified);
+        edit.putString(String.format(PREFS_IMAGES_PATTERN, feedUrl), images.toString());
+        edit.commit();
+    }
+
+    public void clear(String feedUrl) {
+        SharedPreferences.Editor edit = prefs.edit();
+        edit.remove(String.format(PREFS_ETAG_PATTERN, feedUrl));
+        edit.remove(String.format(PREFS_LAST_MODIFIED_PATTERN, feedUrl));
+        edit.remove(String.format(PREFS_IMAGES_PATTERN, feedUrl));
+        edit.commit();
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor edit, String key, String value) {
+        if (value != null) {
+            edit.putString(key, value);
+        } else {
+            edit.remove(key);
+        }
+    }
+}
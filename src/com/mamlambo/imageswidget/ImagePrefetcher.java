@@ -0,0 +1,102 @@
+package com.mamlambo.imageswidget;
+
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+
+import com.mamlambo.imageswidget.core.Metrics;
+
+/**
+ * Decodes images a widget is about to show into the {@link BitmapCache} ahead of time, on a background thread.
+ *
+ * The slideshow knows which image comes next as soon as the current one is shown, a whole update period before it's needed. Decoding it then means the alarm
+ * that shows it only has to look it up.
+ */
+public class ImagePrefetcher {
+    private final BitmapCache cache;
+    private final int width;
+    private final int height;
+    private final ExecutorService executor;
+
+    // guarded by itself
+    private final HashSet<String> inFlight = new HashSet<String>();
+    private volatile boolean paused;
+
+    /**
+     * @param cache
+     *            Where decoded images go
+     * @param width
+     *            Width to decode for
+     * @param height
+     *            Height to decode for
+     */
+    public ImagePrefetcher(BitmapCache cache, int width, int height) {
+        this.cache = cache;
+        this.width = width;
+        this.height = height;
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ImagesWidgetPrefetch");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Decodes an image in the background unless it's already cached or on its way
+     *
+     * @param path
+     *            Path to the image, or null for nothing
+     */
+    public void prefetch(final String path) {
+        if (path == null || paused || cache.contains(path, width, height)) {
+            return;
+        }
+        synchronized (inFlight) {
+            if (!inFlight.add(path)) {
+                return;
+            }
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (!paused && !cache.contains(path, width, height)) {
+                        long decodeStart = Metrics.start();
+                        Bitmap bitmap = BitmapDecoder.decodeForDisplay(path, width, height, true);
+                        Metrics.stop(Metrics.Histogram.DECODE_MICROS, decodeStart);
+                        if (bitmap != null) {
+                            cache.put(path, width, height, bitmap);
+                        }
+                    }
+                } finally {
+                    synchronized (inFlight) {
+                        inFlight.remove(path);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops or resumes prefetching. Requests made while paused are dropped.
+     *
+     * @param paused
+     *            true to stop prefetching
+     */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    /**
+     * Drops any pending work and stops the prefetch thread
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -1,15 +1,9 @@
 package com.mamlambo.imageswidget;
 
 import android.app.Activity;
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.net.Uri;
 import android.os.Bundle;
-import android.os.SystemClock;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
@@ -21,6 +15,7 @@ public class ImagesWidgetConfiguration extends Activity {
     public static final String PREFS_CONTROLS_ACTIVE_FIELD_PATTERN = "ControlsActive-%d";
     public static final String PREFS_PAUSED_FIELD_PATTERN = "Paused-%d";
     public static final String PREFS_FEED_URL_PATTERN = "FeedURL-%d";
+    public static final String PREFS_LAST_IMAGE_PATTERN = "LastImage-%d";
     
     // change image every minute, by default
     // TODO: for a real widget, probably want to switch the units to minutes
@@ -54,12 +49,13 @@ public class ImagesWidgetConfiguration extends Activity {
 
         setContentView(R.layout.configuration);
 
-        final SharedPreferences config = getSharedPreferences(PREFS_NAME, 0);
+        final WidgetStateStore store = WidgetStateStore.getInstance(this);
         final EditText updateRateEntry = (EditText) findViewById(R.id.update_rate_entry);
         final EditText feedUrlEntry = (EditText)findViewById(R.id.feed_url_entry);
 
-        updateRateEntry.setText(String.valueOf(config.getInt(String.format(PREFS_UPDATE_RATE_FIELD_PATTERN, appWidgetId), PREFS_UPDATE_RATE_DEFAULT)));
-        feedUrlEntry.setText(config.getString(String.format(PREFS_FEED_URL_PATTERN,  appWidgetId), PREFS_FEED_URL_DEFAULT));
+        ImagesWidgetProvider.WidgetState state = store.get(appWidgetId);
+        updateRateEntry.setText(String.valueOf(state.updateRateSeconds != -1 ? state.updateRateSeconds : PREFS_UPDATE_RATE_DEFAULT));
+        feedUrlEntry.setText(state.feedUrl.length() > 0 ? state.feedUrl : PREFS_FEED_URL_DEFAULT);
 
         Button saveButton = (Button) findViewById(R.id.save_button);
 
@@ -70,12 +66,8 @@ public class ImagesWidgetConfiguration extends Activity {
                 String feedUrl = feedUrlEntry.getText().toString();
 
                 // store off the user setting for update timing
-                SharedPreferences.Editor configEditor = config.edit();
-
-                configEditor.putInt(String.format(PREFS_UPDATE_RATE_FIELD_PATTERN, appWidgetId), updateRateSeconds);
-                configEditor.putString(String.format(PREFS_FEED_URL_PATTERN, appWidgetId), feedUrl);
-                
-                configEditor.commit();
+                // (written to disk in the background)
+                store.storeConfiguration(appWidgetId, updateRateSeconds, feedUrl);
 
                 if (appWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID) {
 
@@ -84,17 +76,8 @@ public class ImagesWidgetConfiguration extends Activity {
                     resultValue.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
                     setResult(RESULT_OK, resultValue);
 
-                    Intent widgetUpdate = new Intent();
-                    widgetUpdate.setAction(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
-                    widgetUpdate.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, new int[] { appWidgetId });
-
-                    // make this pending intent unique
-                    widgetUpdate.setData(Uri.withAppendedPath(Uri.parse(ImagesWidgetProvider.URI_SCHEME + "://widget/id/"), String.valueOf(appWidgetId)));
-                    PendingIntent newPending = PendingIntent.getBroadcast(getApplicationContext(), 0, widgetUpdate, PendingIntent.FLAG_UPDATE_CURRENT);
-
-                    // schedule the new widget for updating
-                    AlarmManager alarms = (AlarmManager) getApplicationContext().getSystemService(Context.ALARM_SERVICE);
-                    alarms.setRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime(), updateRateSeconds * 1000, newPending);
+                    // draw the widget now and schedule it for updating
+                    ImagesWidgetProvider.setAlarm(getApplicationContext(), appWidgetId, updateRateSeconds);
                 }
 
                 // activity is now done
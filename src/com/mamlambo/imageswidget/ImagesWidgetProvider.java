@@ -1,41 +1,59 @@
 package com.mamlambo.imageswidget;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.net.URL;
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.Vector;
-
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserFactory;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.widget.RemoteViews;
 
+import com.mamlambo.imageswidget.core.AlarmPlanner;
+import com.mamlambo.imageswidget.core.Clock;
+import com.mamlambo.imageswidget.core.DownloadExecutor;
+import com.mamlambo.imageswidget.core.ImageTransfer;
+import com.mamlambo.imageswidget.core.Metrics;
+import com.mamlambo.imageswidget.core.RenderSink;
+import com.mamlambo.imageswidget.core.SlideshowEngine;
+import com.mamlambo.imageswidget.core.UrlConnectionTransport;
+
 /**
  * @author Shane Conder and Lauren Darcey
  * 
  */
 public class ImagesWidgetProvider extends AppWidgetProvider {
     private static final String ACTION_WIDGET_CONTROL = "com.mamlambo.ImagesWidget.WIDGET_CONTROL";
+    private static final String ACTION_UPDATE_TICK = "com.mamlambo.ImagesWidget.UPDATE_TICK";
     private static final String LOG_TAG = "ImagesWidgetProvider";
 
+    // true to put every widget on one shared, inexact alarm; false for an exact alarm per widget
+    private static final boolean ALIGNED_UPDATES = true;
+
+    // no widget updates more often than this, in aligned mode
+    private static final long MIN_UPDATE_PERIOD = 30 * 1000;
+
+    // the shared alarm's schedule, rebuilt from the stored state if the process was killed
+    private static AlarmPlanner planner;
+    private static long armedTick;
+
     public static final String URI_SCHEME = "images_widget";
 
     @Override
@@ -113,6 +131,16 @@ public class ImagesWidgetProvider extends AppWidgetProvider {
                 this.onHandleAction(context, appWidgetId, intent.getData());
             }
 
+        } else if (ACTION_UPDATE_TICK.equals(action)) {
+            AlarmPlanner alarmPlanner = getAlarmPlanner(context);
+            int[] appWidgetIds = alarmPlanner.onTick();
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+                Log.d(LOG_TAG, "Update tick: widgets=" + appWidgetIds.length + ", ticks=" + alarmPlanner.getTickCount() + ", skipped="
+                        + alarmPlanner.getSkippedTickCount() + ", updates=" + alarmPlanner.getUpdateCount());
+            }
+            if (appWidgetIds.length > 0) {
+                onUpdate(context, AppWidgetManager.getInstance(context), appWidgetIds);
+            }
         } else if (AppWidgetManager.ACTION_APPWIDGET_UPDATE.equals(action)) {
 
             if (!URI_SCHEME.equals(intent.getScheme())) {
@@ -203,16 +231,18 @@ public class ImagesWidgetProvider extends AppWidgetProvider {
     }
 
     /**
-     * Sets an alarm to post a broadcast pending intent for updating a particular appWidgetId
+     * Sets an alarm to post a broadcast pending intent for updating a particular appWidgetId. The widget is updated right away, then every updateRateSeconds.
+     * 
+     * In aligned mode the widget joins the single shared alarm instead of getting its own.
      * 
      * @param context
      *            the Context to set the alarm under
      * @param appWidgetId
      *            the widget identifier for this alarm
      * @param updateRateSeconds
-     *            the amount of time between alarms
+     *            the amount of time between alarms, or -1 to stop them
      */
-    private void setAlarm(Context context, int appWidgetId, int updateRateSeconds) {
+    static void setAlarm(Context context, int appWidgetId, int updateRateSeconds) {
         Intent widgetUpdate = new Intent();
         widgetUpdate.setAction(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
         widgetUpdate.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, new int[] { appWidgetId });
@@ -223,74 +253,265 @@ public class ImagesWidgetProvider extends AppWidgetProvider {
 
         // schedule the updating
         AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        if (updateRateSeconds >= 0) {
+        if (ALIGNED_UPDATES) {
+            // drop any alarm of its own left over from exact mode
+            alarms.cancel(newPending);
+
+            AlarmPlanner alarmPlanner = getAlarmPlanner(context);
+            if (updateRateSeconds >= 0) {
+                alarmPlanner.setPeriod(appWidgetId, updateRateSeconds * 1000L);
+                context.sendBroadcast(widgetUpdate);
+            } else {
+                alarmPlanner.remove(appWidgetId);
+            }
+            armUpdateTick(context, alarmPlanner.getTick());
+        } else if (updateRateSeconds >= 0) {
             alarms.setRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime(), updateRateSeconds * 1000, newPending);
         } else {
             alarms.cancel(newPending);
         }
     }
 
+    /**
+     * Returns the shared alarm's schedule, rebuilding it from the stored state of every widget if the process has been restarted
+     * 
+     * @param context
+     *            Context to read the widget state with
+     * @return the schedule
+     */
+    static synchronized AlarmPlanner getAlarmPlanner(Context context) {
+        if (planner == null) {
+            planner = new AlarmPlanner(new Clock() {
+                public long now() {
+                    return SystemClock.elapsedRealtime();
+                }
+            }, MIN_UPDATE_PERIOD);
+
+            int[] appWidgetIds = AppWidgetManager.getInstance(context).getAppWidgetIds(new ComponentName(context, ImagesWidgetProvider.class));
+            for (int appWidgetId : appWidgetIds) {
+                WidgetState state = WidgetState.getState(context, appWidgetId);
+                if (state.updateRateSeconds != -1 && !state.paused) {
+                    planner.setPeriod(appWidgetId, state.updateRateSeconds * 1000L);
+                }
+            }
+        }
+        return planner;
+    }
+
+    /**
+     * Sets or cancels the shared alarm. setInexactRepeating only batches with other applications' alarms when the tick is one of the AlarmManager.INTERVAL_*
+     * values; other ticks still save every widget but one from waking up on its own.
+     * 
+     * @param context
+     *            the Context to set the alarm under
+     * @param tick
+     *            the interval to repeat at, or 0 to cancel
+     */
+    private static synchronized void armUpdateTick(Context context, long tick) {
+        if (tick == armedTick) {
+            return;
+        }
+
+        Intent updateTick = new Intent(ACTION_UPDATE_TICK);
+        updateTick.setData(Uri.parse(ImagesWidgetProvider.URI_SCHEME + "://widget/tick"));
+        PendingIntent tickPending = PendingIntent.getBroadcast(context, 0, updateTick, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (tick > 0) {
+            alarms.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + tick, tick, tickPending);
+        } else {
+            alarms.cancel(tickPending);
+        }
+        armedTick = tick;
+    }
+
     public static class WidgetService extends Service {
         public static final String EXTRA_FLAG_REQUEST_STOP = "requestStop";
         public static final String EXTRA_FLAG_UPDATE_IMAGE = "flagUpdateImage";
-        Hashtable<Integer, UpdateThread> threadPool = new Hashtable<Integer, UpdateThread>();
 
-        @Override
-        public void onStart(Intent intent, int startId) {
-            // 
-            super.onStart(intent, startId);
+        // share of the heap decoded images may occupy
+        private static final int BITMAP_CACHE_HEAP_FRACTION = 8;
 
-            int appWidgetId = intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, -1);
+        // downloaded images live here, shared by all widgets
+        private static final String IMAGE_CACHE_DIR = "images";
+        private static final long IMAGE_CACHE_QUOTA = 8 * 1024 * 1024;
 
-            boolean updateImage = intent.getBooleanExtra(WidgetService.EXTRA_FLAG_UPDATE_IMAGE, false);
-            boolean stopRequested = intent.getBooleanExtra(WidgetService.EXTRA_FLAG_REQUEST_STOP, false);
+        // limits for the download executor shared by all widgets
+        private static final int DOWNLOAD_PARALLELISM = 4;
+        private static final int DOWNLOAD_MAX_PER_HOST = 2;
+        private static final int DOWNLOAD_QUEUE_CAPACITY = 40;
 
-            if (threadPool.containsKey(appWidgetId)) {
-                UpdateThread thread = threadPool.get(appWidgetId);
-                if (thread.isAlive()) {
+        // downloaded images are re-encoded to about this size, once shrunk to the widget
+        private static final int IMAGE_BYTE_BUDGET = 32 * 1024;
 
-                    if (stopRequested) {
+        // each widget's playlist is kept here, so it survives the service being killed
+        private static final String PLAYLIST_DIR = "playlists";
 
-                        thread.requestStop();
-                        thread.clearImages();
+        // widget updates arriving within this many milliseconds are sent together
+        private static final long UPDATE_WINDOW = 100;
 
-                        if (threadPool.isEmpty()) {
-                            // if there are no threads, we don't need to be running
-                            this.stopSelf();
-                        }
-                    } else {
-                        String imageUrl;
-                        if (updateImage) {
-                            imageUrl = thread.getNextImagePath(true);
-                        } else {
-                            imageUrl = thread.getCurrentImagePath();
-                        }
+        // Froyo; connection reuse is left off below this
+        private static final int FIRST_RELIABLE_KEEP_ALIVE_SDK = 8;
 
-                        updateWidget(this, appWidgetId, imageUrl);
+        // how long onDestroy waits for commands already being handled
+        private static final long COMMAND_SHUTDOWN_WAIT = 2000;
 
-                    }
-                } else {
-                    Log.w(LOG_TAG, "Thread has died: " + appWidgetId);
+        // metrics are recorded while this tag is loggable at DEBUG, and written here
+        private static final String METRICS_LOG_TAG = "ImagesWidgetMetrics";
+        private static final String METRICS_FILE = "metrics.txt";
+
+        SlideshowEngine engine;
+        WidgetCommandQueue commands;
+        Handler handler;
+        WidgetUpdateDispatcher updates;
+        BitmapCache bitmaps;
+        ImagePrefetcher prefetcher;
+        ResourceGovernor governor;
+
+        // each widget's control PendingIntents; only touched on the command thread
+        SparseArray<WidgetControls> controls = new SparseArray<WidgetControls>();
+
+        // tells the shared alarm to skip ticks while nobody can see the widgets
+        private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                getAlarmPlanner(context).setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+            }
+        };
+
+        // the engine's view of this service; called from the engine's threads
+        private final RenderSink renderSink = new RenderSink() {
+            public void onFirstImage(int appWidgetId) {
+                showFirstImage(appWidgetId);
+            }
+
+            public void onImageRemoved(String imagePath) {
+                bitmaps.remove(imagePath);
+            }
+
+            public void onImageDeleted(String imagePath) {
+                bitmaps.remove(imagePath);
+                BitmapDecoder.deleteThumbnail(imagePath, imageWidth, imageHeight);
+            }
+
+            public void onFeedRefreshed(String feedUrl) {
+                dumpMetrics();
+            }
+        };
+
+        // carries out what onStart queues; runs on the command thread
+        private final WidgetCommandQueue.CommandHandler commandHandler = new WidgetCommandQueue.CommandHandler() {
+            public void onUpdate(int appWidgetId, boolean advance) {
+                WidgetState state = WidgetState.getState(WidgetService.this, appWidgetId);
+
+                // a widget the engine didn't know yet picks up where it left off if its playlist was saved
+                String imageUrl = engine.showWidget(appWidgetId, state.feedUrl, advance);
+                if (imageUrl == null) {
+                    // nothing downloaded yet: draw whatever it showed last if that's still cached,
+                    // or just the frame; the first download to arrive redraws it (see showFirstImage)
+                    imageUrl = getLastImagePath(state);
                 }
-            } else {
-                UpdateThread thread = new UpdateThread(appWidgetId);
-                threadPool.put(appWidgetId, thread);
-                thread.start();
-
-                // the widget has just gotten started, so nothing is displaying just yet
-                // if we just return, nothing will display until the next update.
-                // instead, we can try to wait for the first image to download
-                // and then draw it...
-                // TODO: There are better ways to do this.
-                synchronized (this) {
-                    try {
-
-                        wait(5000);
-                    } catch (InterruptedException e) {
-                    }
+
+                updateWidget(WidgetService.this, appWidgetId, imageUrl);
+                prefetcher.prefetch(engine.peekNextImage(appWidgetId));
+            }
+
+            public void onStop(int appWidgetId) {
+                engine.removeWidget(appWidgetId);
+                controls.remove(appWidgetId);
+            }
+
+            public void onIdle(int startId) {
+                governor.check();
+                if (engine.getWidgetCount() == 0) {
+                    // if there are no widgets, we don't need to be running; ignored if another start came in since
+                    stopSelfResult(startId);
                 }
-                String imageUrl = thread.getNextImagePath(true);
-                updateWidget(this, appWidgetId, imageUrl);
+            }
+        };
+
+        // size images are decoded to; matches the widget cell declared in imageswidget_info.xml
+        int imageWidth;
+        int imageHeight;
+
+        @Override
+        public void onCreate() {
+            super.onCreate();
+            // adb shell setprop log.tag.ImagesWidgetMetrics DEBUG, then restart the service
+            Metrics.setEnabled(Log.isLoggable(METRICS_LOG_TAG, Log.DEBUG));
+            handler = new Handler();
+            updates = new WidgetUpdateDispatcher(AppWidgetManager.getInstance(this), handler, UPDATE_WINDOW);
+            imageWidth = getResources().getDimensionPixelSize(R.dimen.widget_min_width);
+            imageHeight = getResources().getDimensionPixelSize(R.dimen.widget_min_height);
+            bitmaps = new BitmapCache((int) (Runtime.getRuntime().maxMemory() / BITMAP_CACHE_HEAP_FRACTION));
+            prefetcher = new ImagePrefetcher(bitmaps, imageWidth, imageHeight);
+
+            // before Froyo, HttpURLConnection could hand out a pooled connection the server had already closed
+            if (Integer.parseInt(Build.VERSION.SDK) < FIRST_RELIABLE_KEEP_ALIVE_SDK) {
+                System.setProperty("http.keepAlive", "false");
+            }
+
+            // the feeds, playlists and downloads; this service only draws what it picks
+            engine = new SlideshowEngine(new File(getFilesDir(), IMAGE_CACHE_DIR), IMAGE_CACHE_QUOTA, new File(getFilesDir(), PLAYLIST_DIR),
+                    new UrlConnectionTransport(), new DownloadExecutor(DOWNLOAD_PARALLELISM, DOWNLOAD_MAX_PER_HOST, DOWNLOAD_QUEUE_CAPACITY),
+                    new FeedValidators(getApplicationContext()), Clock.WALL, renderSink);
+            engine.setImageNormalizer(new BitmapNormalizer(imageWidth, imageHeight, IMAGE_BYTE_BUDGET));
+            deleteLegacyImages();
+            commands = new WidgetCommandQueue(commandHandler);
+
+            // sheds caches and throttles downloads under memory pressure; runs on the command thread
+            governor = new ResourceGovernor(bitmaps, prefetcher, engine, new Runnable() {
+                public void run() {
+                    // rebuilt on each widget's next update
+                    controls.clear();
+                }
+            });
+
+            // screen changes can only be received by a registered receiver, not one in the manifest
+            IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+            screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+            registerReceiver(screenReceiver, screenFilter);
+        }
+
+        @Override
+        public void onDestroy() {
+            unregisterReceiver(screenReceiver);
+            commands.shutdown(COMMAND_SHUTDOWN_WAIT);
+            updates.flush();
+            WidgetStateStore.getInstance(this).flush();
+            engine.close();
+            prefetcher.shutdown();
+            bitmaps.evictAll();
+            dumpMetrics();
+            super.onDestroy();
+        }
+
+        @Override
+        public void onLowMemory() {
+            // decoded images can always be read back from disk
+            bitmaps.evictAll();
+            commands.post(new Runnable() {
+                public void run() {
+                    governor.onLowMemory();
+                }
+            });
+            super.onLowMemory();
+        }
+
+        @Override
+        public void onStart(Intent intent, int startId) {
+            super.onStart(intent, startId);
+
+            int appWidgetId = intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, -1);
+
+            boolean updateImage = intent.getBooleanExtra(WidgetService.EXTRA_FLAG_UPDATE_IMAGE, false);
+            boolean stopRequested = intent.getBooleanExtra(WidgetService.EXTRA_FLAG_REQUEST_STOP, false);
+
+            // reading state, decoding and drawing all happen on the command thread; a burst of starts is handled in one pass
+            if (stopRequested) {
+                commands.stop(appWidgetId, startId);
+            } else {
+                commands.update(appWidgetId, updateImage, startId);
             }
         }
 
@@ -301,6 +522,79 @@ public class ImagesWidgetProvider extends AppWidgetProvider {
             return null;
         }
 
+        /**
+         * Draws a widget's first downloaded image as soon as it arrives, instead of waiting for the next alarm
+         * 
+         * @param appWidgetId
+         *            The widget that just got its first image
+         */
+        private void showFirstImage(final int appWidgetId) {
+            commands.post(new Runnable() {
+                public void run() {
+                    // it may have been deleted in the meantime
+                    if (engine.hasWidget(appWidgetId)) {
+                        updateWidget(WidgetService.this, appWidgetId, engine.nextImage(appWidgetId));
+                        prefetcher.prefetch(engine.peekNextImage(appWidgetId));
+                    }
+                }
+            });
+        }
+
+        /**
+         * Writes the metrics recorded so far to {@code metrics.txt} in the files directory, replacing the previous dump. Does nothing unless metrics are
+         * enabled.
+         */
+        private void dumpMetrics() {
+            if (!Metrics.isEnabled()) {
+                return;
+            }
+            File file = new File(getFilesDir(), METRICS_FILE);
+            File temp = new File(file.getPath() + ImageTransfer.TEMP_SUFFIX);
+            try {
+                PrintWriter out = new PrintWriter(new FileWriter(temp));
+                try {
+                    Metrics.dump(out);
+                } finally {
+                    out.close();
+                }
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to write " + file, e);
+            }
+        }
+
+        /**
+         * Finds the image a widget showed before the service was last restarted
+         * 
+         * @param state
+         *            The widget's state
+         * @return the path to the image, or null if there is none or it has since left the cache
+         */
+        private String getLastImagePath(WidgetState state) {
+            if (state.lastImagePath != null && new File(state.lastImagePath).exists()) {
+                return state.lastImagePath;
+            }
+            return null;
+        }
+
+        /**
+         * Removes images saved by earlier versions, which stored a copy per widget directly in the files directory
+         */
+        private void deleteLegacyImages() {
+            File[] files = getFilesDir().listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith("img-") && name.endsWith(".png")) {
+                    file.delete();
+                }
+            }
+        }
+
  
 
         /**
@@ -316,17 +610,12 @@ public class ImagesWidgetProvider extends AppWidgetProvider {
          *            The particular widget to act on
          */
         private void updateControlStateOfWidget(Context context, RemoteViews remoteView, WidgetState state, int appWidgetId) {
+            WidgetControls widgetControls = getControls(context, appWidgetId);
             if (state.controlsActive) {
                 remoteView.setViewVisibility(R.id.controls_frame, View.VISIBLE);
-                remoteView.setOnClickPendingIntent(R.id.play_pause, makeControlPendingIntent(context, "playpause", appWidgetId));
-                remoteView.setOnClickPendingIntent(R.id.next, makeControlPendingIntent(context, "next", appWidgetId));
-
-                Intent configIntent = new Intent(context, ImagesWidgetConfiguration.class);
-                configIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
-                // gotta make this unique for this appwidgetid
-                configIntent.setData(Uri.withAppendedPath(Uri.parse(ImagesWidgetProvider.URI_SCHEME + "://widget/id/"), String.valueOf(appWidgetId)));
-                PendingIntent pendingIntent = PendingIntent.getActivity(context, 0, configIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-                remoteView.setOnClickPendingIntent(R.id.config, pendingIntent);
+                remoteView.setOnClickPendingIntent(R.id.play_pause, widgetControls.playPause);
+                remoteView.setOnClickPendingIntent(R.id.next, widgetControls.next);
+                remoteView.setOnClickPendingIntent(R.id.config, widgetControls.config);
                 if (state.paused) {
                     remoteView.setImageViewResource(R.id.play_pause, R.drawable.ic_menu_play_clip);
                 } else {
@@ -336,12 +625,10 @@ public class ImagesWidgetProvider extends AppWidgetProvider {
                 remoteView.setViewVisibility(R.id.controls_frame, View.GONE);
             }
 
-            remoteView.setOnClickPendingIntent(R.id.widget_frame, makeControlPendingIntent(context, "active", appWidgetId));
-            try {
-                AppWidgetManager.getInstance(context).updateAppWidget(appWidgetId, remoteView); 
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "Failure updating widget");
-            }
+            remoteView.setOnClickPendingIntent(R.id.widget_frame, widgetControls.active);
+
+            // sent with any other updates in the same window; newer updates to this widget replace it
+            updates.dispatch(appWidgetId, remoteView);
         }
 
         /**
@@ -360,8 +647,25 @@ public class ImagesWidgetProvider extends AppWidgetProvider {
             RemoteViews remoteView = new RemoteViews(context.getPackageName(), R.layout.widget);
 
             if (imagePath != null) {
-                Bitmap image = BitmapFactory.decodeFile(imagePath);
+                // decode at widget size; the full-size image would be copied across the binder on every update
+                Bitmap image = bitmaps.get(imagePath, imageWidth, imageHeight);
+                if (image == null) {
+                    Metrics.count(Metrics.Counter.BITMAP_CACHE_MISSES);
+                    long decodeStart = Metrics.start();
+                    image = BitmapDecoder.decodeForDisplay(imagePath, imageWidth, imageHeight, true);
+                    Metrics.stop(Metrics.Histogram.DECODE_MICROS, decodeStart);
+                    if (image != null) {
+                        bitmaps.put(imagePath, imageWidth, imageHeight, image);
+                    }
+                } else {
+                    Metrics.count(Metrics.Counter.BITMAP_CACHE_HITS);
+                }
                 remoteView.setImageViewBitmap(R.id.image, image);
+
+                // remembered so a restarted service has something to draw straight away
+                if (!imagePath.equals(state.lastImagePath)) {
+                    WidgetState.storeLastImagePath(context, appWidgetId, imagePath);
+                }
             }
 
             // modify remoteView based on current state
@@ -369,247 +673,69 @@ public class ImagesWidgetProvider extends AppWidgetProvider {
         }
 
         /**
-         * Helper method to create a new {@code PendingIntent} for a widget control action
+         * Returns the PendingIntents behind a widget's controls, creating them the first time they're needed
          * 
          * @param context
          *            Context to create under
-         * @param command
-         *            Supported command string
          * @param appWidgetId
-         *            The Widget ID for this command
-         * @return a new Broadcast PendingIntent
+         *            The Widget ID the controls belong to
+         * @return the widget's controls
          */
-        private PendingIntent makeControlPendingIntent(Context context, String command, int appWidgetId) {
-            Intent active = new Intent();
-            active.setAction(ACTION_WIDGET_CONTROL);
-            active.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
-            Uri data = Uri.withAppendedPath(Uri.parse(URI_SCHEME + "://widget/id/#" + command), String.valueOf(appWidgetId));
-            active.setData(data);
-            return (PendingIntent.getBroadcast(context, 0, active, PendingIntent.FLAG_ONE_SHOT));
-        }
-
-        private class UpdateThread extends Thread {
-            // Update images from feed each hour
-            private static final int URL_UPDATE_DELAY = 2 * 60 * 60 * 1000;
-            private int appWidgetId;
-            private boolean stopRequested = false;
-
-            // Vector is synchronized for us.
-            private Vector<String> imagePaths;
-            private int curIndex;
-
-            /**
-             * Constructor for our custom Thread object to update the images on a schedule
-             * 
-             * @param appWidgetId
-             *            The App Widget identifier this Thread is tied to
-             */
-            public UpdateThread(int appWidgetId) {
-                super("ImagesWidgetThread");
-                this.appWidgetId = appWidgetId;
-                imagePaths = new Vector<String>(20);
-                curIndex = 0;
-            }
-
-            /*
-             * (non-Javadoc)
-             * 
-             * @see java.lang.Thread#run()
-             */
-            public void run() {
-                long millis = 0;
-                long millisOffset = 0;
-                WidgetState state = WidgetState.getState(getApplicationContext(), appWidgetId);
-
-                while (!stopRequested) {
-                    synchronized (this) {
-                        Log.d(LOG_TAG, "Test: appWidgetId=[" + appWidgetId + "], feedUrl=[" + state.feedUrl + "]");
-                        // make sure it's been long enough
-                        millisOffset = System.currentTimeMillis() - millis;
-                        if (millisOffset > URL_UPDATE_DELAY) {
-                            Log.i(LOG_TAG, "Updating Url: " + appWidgetId + "], feedUrl=[" + state.feedUrl + "]");
-                            getAndParseFeedUrl(state.feedUrl);
-                            millis = System.currentTimeMillis();
-                            millisOffset = 0;
-                        }
-                        try {
-                            wait(URL_UPDATE_DELAY - millisOffset);
-                        } catch (InterruptedException e) {
-                            Log.e(LOG_TAG, "Interrupted: " + e.toString(), e);
-                        }
-                        // update the state
-                        state = WidgetState.getState(getApplicationContext(), appWidgetId);
-                    }
-                }
-            }
-
-            /**
-             * Call to request this thread cleanly finish and stop
-             * 
-             * Waits until the thread has stopped -- or an Exception is triggered
-             * 
-             */
-            public void requestStop() {
-                synchronized (this) {
-                    stopRequested = true;
-                    notify();
-                }
-                try {
-                    join();
-                } catch (InterruptedException ex) {
-                    Thread.currentThread().interrupt();
-                }
-
-            }
-
-            public void clearImages() {
-                Iterator<String> iterate = imagePaths.iterator();
-
-                while (iterate.hasNext()) {
-                    String path = iterate.next();
-
-                    File image = new File(path);
-                    boolean result = image.delete();
-                    if (!result) {
-                        Log.w(LOG_TAG, "Failed to delete: " + path);
-                    }
-                }
+        private WidgetControls getControls(Context context, int appWidgetId) {
+            WidgetControls widgetControls = controls.get(appWidgetId);
+            if (widgetControls == null) {
+                widgetControls = new WidgetControls(context, appWidgetId);
+                controls.put(appWidgetId, widgetControls);
             }
+            return widgetControls;
+        }
 
-            /**
-             * Determines the path to the next image for the widget
-             * 
-             * @param random
-             *            if true, returns a random next image otherwise consecutive
-             * @return string representing path to next image to display in widget
-             */
-            public String getNextImagePath(boolean random) {
-                int next;
-                if (random) {
-                    next = new java.util.Random().nextInt(imagePaths.size());
-                    curIndex = next;
-                } else {
-                    curIndex++;
-                    if (curIndex > imagePaths.size()) {
-                        curIndex = 0;
-                    }
-                    next = curIndex;
-                }
-                return imagePaths.elementAt(next);
+        /**
+         * The PendingIntents behind one widget's controls. They don't change for the life of the widget, so they're built once instead of on every update.
+         * 
+         * Every update still sends a complete {@code RemoteViews}: hosts before API 11 replace the widget's views wholesale, so the click handlers have to be
+         * set again each time.
+         */
+        private static class WidgetControls {
+            final PendingIntent playPause;
+            final PendingIntent next;
+            final PendingIntent active;
+            final PendingIntent config;
 
-            }
+            WidgetControls(Context context, int appWidgetId) {
+                Uri widgetUri = Uri.withAppendedPath(Uri.parse(ImagesWidgetProvider.URI_SCHEME + "://widget/id/"), String.valueOf(appWidgetId));
 
-            /**
-             * Used to retrieve the path to the current image, the most recent return from {@link getNextImagePath}
-             * 
-             * @return String representing the local path to the image
-             */
-            public String getCurrentImagePath() {
-                String curPath = imagePaths.elementAt(curIndex);
-                if (curPath == null) {
-                    // no longer available
-                    curPath = getNextImagePath(false);
-                }
-                return curPath;
-            }
+                playPause = makeControlPendingIntent(context, "playpause", appWidgetId);
+                next = makeControlPendingIntent(context, "next", appWidgetId);
+                active = makeControlPendingIntent(context, "active", appWidgetId);
 
-            /**
-             * Downloads feedUrl and parses it for images.
-             * 
-             * Tested with flickr RSS feeds. Should work with any image enclosure.
-             * 
-             * @param feedUrl
-             *            String representing URL to a supported feed
-             */
-            private void getAndParseFeedUrl(String feedUrl) {
-                try {
-                    URL feed = new URL(feedUrl);
-                    XmlPullParserFactory parserCreator = XmlPullParserFactory.newInstance();
-                    XmlPullParser parser = parserCreator.newPullParser();
-
-                    parser.setInput(feed.openStream(), null);
-
-                    int parserEvent = parser.getEventType();
-                    while (parserEvent != XmlPullParser.END_DOCUMENT && !stopRequested) {
-                        switch (parserEvent) {
-                        case XmlPullParser.START_TAG:
-                            String tag = parser.getName();
-                            if (tag.compareTo("link") == 0) {
-                                String relType = parser.getAttributeValue(null, "rel");
-                                if (relType.compareTo("enclosure") == 0) {
-                                    String encType = parser.getAttributeValue(null, "type");
-                                    if (encType.startsWith("image/")) {
-                                        String imageSrc = parser.getAttributeValue(null, "href");
-                                        Log.i("Net", "image source = " + imageSrc);
-
-                                        downloadImageToCache(imageSrc);
-                                    }
-                                }
-                            }
-                            break;
-                        }
-
-                        parserEvent = parser.next();
-                    }
-
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "Failed during parsing feed.", e);
-                }
+                Intent configIntent = new Intent(context, ImagesWidgetConfiguration.class);
+                configIntent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+                // gotta make this unique for this appwidgetid
+                configIntent.setData(widgetUri);
+                config = PendingIntent.getActivity(context, 0, configIntent, PendingIntent.FLAG_UPDATE_CURRENT);
             }
 
             /**
-             * Downloads an image, referenced by imageSrc, to the app-local storage
-             * 
-             * Images paths are kept in {@code imagePaths}
-             * 
-             * Images could be converted or resized when saved for efficiency and storage minimuzation. Flickr feeds provide small JPEG images, so we'll leave them alone.
-             * 
-             * @param imageSrc
-             *            URL to the actual image to download. Not tested for supported type.
+             * Helper method to create a new {@code PendingIntent} for a widget control action. It stays valid for any number of taps.
              * 
+             * @param context
+             *            Context to create under
+             * @param command
+             *            Supported command string
+             * @param appWidgetId
+             *            The Widget ID for this command
+             * @return a new Broadcast PendingIntent
              */
-            private void downloadImageToCache(final String imageSrc) {
-                // put this in the background
-                new Thread() {
-
-                    public void run() {
-                        try {
-                            URL image = new URL(imageSrc);
-                            String name = String.format("img-%d-%d.png", imageSrc.hashCode(), appWidgetId);
-
-                            File path = new File(getFilesDir(), name);
-
-                            // only download again if we don't have it
-                            // NOTE: if the image at the URL changes, this won't
-                            // download it again
-                            if (!path.exists()) {
-                                // get a buffered stream
-                                BufferedInputStream is = new BufferedInputStream(image.openStream(), 5000);
-
-                                FileOutputStream fos = openFileOutput(path.getName(), MODE_WORLD_READABLE);
-
-                                while (is.available() > 0) {
-                                    byte[] buffer = new byte[5000];
-                                    int read = is.read(buffer);
-                                    fos.write(buffer, 0, read);
-                                }
-                                fos.close();
-                                is.close();
-                            }
-
-                            // keep track of it (Vector is synchronized)
-                            if (!imagePaths.contains(path.getCanonicalPath())) {
-                                imagePaths.add(path.getCanonicalPath());
-                            }
-                        } catch (Exception e) {
-                            Log.e(LOG_TAG, "Failed to download: " + imageSrc, e);
-                        }
-                    }
-                }.start();
-
+            private static PendingIntent makeControlPendingIntent(Context context, String command, int appWidgetId) {
+                Intent active = new Intent();
+                active.setAction(ACTION_WIDGET_CONTROL);
+                active.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+                Uri data = Uri.withAppendedPath(Uri.parse(URI_SCHEME + "://widget/id/#" + command), String.valueOf(appWidgetId));
+                active.setData(data);
+                return (PendingIntent.getBroadcast(context, 0, active, PendingIntent.FLAG_UPDATE_CURRENT));
             }
         }
-
     }
 
     // state management and utilities
@@ -618,24 +744,21 @@ public class ImagesWidgetProvider extends AppWidgetProvider {
         boolean paused;
         int updateRateSeconds; // readonly in here
         String feedUrl; // readonly in here
+        String lastImagePath;
 
         /**
-         * Retrieves a new WidgetState object from the data store (currently SharedPrefs)
+         * Retrieves the WidgetState object for a widget from the data store (cached in memory by {@link WidgetStateStore})
+         * 
+         * The returned object is a copy; use {@link #storeState} to save changes to it.
          * 
          * @param context
          *            Context to operate under
          * @param appWidgetId
          *            App Widget identifier information to retrieve
-         * @return a new WidgetState object
+         * @return the widget's WidgetState object
          */
         private static WidgetState getState(Context context, int appWidgetId) {
-            WidgetState state = new WidgetState();
-            SharedPreferences config = context.getSharedPreferences(ImagesWidgetConfiguration.PREFS_NAME, 0);
-            state.updateRateSeconds = config.getInt(String.format(ImagesWidgetConfiguration.PREFS_UPDATE_RATE_FIELD_PATTERN, appWidgetId), -1);
-            state.paused = config.getBoolean(String.format(ImagesWidgetConfiguration.PREFS_PAUSED_FIELD_PATTERN, appWidgetId), false);
-            state.controlsActive = config.getBoolean(String.format(ImagesWidgetConfiguration.PREFS_CONTROLS_ACTIVE_FIELD_PATTERN, appWidgetId), false);
-            state.feedUrl = config.getString(String.format(ImagesWidgetConfiguration.PREFS_FEED_URL_PATTERN, appWidgetId), "");
-            return state;
+            return WidgetStateStore.getInstance(context).get(appWidgetId);
         }
 
         /**
@@ -648,11 +771,20 @@ public class ImagesWidgetProvider extends AppWidgetProvider {
          *            The WidgetState to store
          */
         private static void storeState(Context context, int appWidgetId, WidgetState state) {
-            SharedPreferences config = context.getSharedPreferences(ImagesWidgetConfiguration.PREFS_NAME, 0);
-            SharedPreferences.Editor edit = config.edit();
-            edit.putBoolean(String.format(ImagesWidgetConfiguration.PREFS_PAUSED_FIELD_PATTERN, appWidgetId), state.paused);
-            edit.putBoolean(String.format(ImagesWidgetConfiguration.PREFS_CONTROLS_ACTIVE_FIELD_PATTERN, appWidgetId), state.controlsActive);
-            edit.commit();
+            WidgetStateStore.getInstance(context).storeControls(appWidgetId, state);
+        }
+
+        /**
+         * Store the path of the image last shown in a widget
+         * 
+         * @param context
+         * @param appWidgetId
+         *            App Widget identifier this image was shown in
+         * @param imagePath
+         *            Local path to the image
+         */
+        private static void storeLastImagePath(Context context, int appWidgetId, String imagePath) {
+            WidgetStateStore.getInstance(context).storeLastImagePath(appWidgetId, imagePath);
         }
 
         /**
@@ -663,15 +795,7 @@ public class ImagesWidgetProvider extends AppWidgetProvider {
          *            App Widget identifier to clear the information for
          */
         private static void deleteStateForId(Context context, int appWidgetId) {
-            SharedPreferences config = context.getSharedPreferences(ImagesWidgetConfiguration.PREFS_NAME, 0);
-            SharedPreferences.Editor edit = config.edit();
-
-            edit.remove(String.format(ImagesWidgetConfiguration.PREFS_PAUSED_FIELD_PATTERN, appWidgetId));
-            edit.remove(String.format(ImagesWidgetConfiguration.PREFS_CONTROLS_ACTIVE_FIELD_PATTERN, appWidgetId));
-            edit.remove(String.format(ImagesWidgetConfiguration.PREFS_UPDATE_RATE_FIELD_PATTERN, appWidgetId));
-            edit.remove(String.format(ImagesWidgetConfiguration.PREFS_FEED_URL_PATTERN, appWidgetId));
-
-            edit.commit();
+            WidgetStateStore.getInstance(context).delete(appWidgetId);
         }
     }
 
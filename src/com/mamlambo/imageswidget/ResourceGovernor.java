@@ -0,0 +1,181 @@
+package com.mamlambo.imageswidget;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mamlambo.imageswidget.core.DownloadExecutor;
+import com.mamlambo.imageswidget.core.SlideshowEngine;
+
+/**
+ * Scales the service's memory use to the pressure the process is under, so a low-RAM device keeps it alive instead of killing it and restarting it cold.
+ *
+ * The pressure level comes from the heap headroom left, counting the decoded images the service holds (before Honeycomb their pixels live outside the Java
+ * heap but count against the same limit), and from the system's low-memory signal. Each level sheds more:
+ * <ul>
+ * <li>moderate: the bitmap cache shrinks to half and prefetching pauses</li>
+ * <li>low: the bitmap cache shrinks to a quarter, downloads run one at a time and idle per-widget structures are released</li>
+ * <li>critical: all of the above, and every decoded image is dropped</li>
+ * </ul>
+ * A level only changes once consecutive checks agree on it, so a single reading taken just before a collection doesn't shed anything. Once the pressure
+ * eases, the level drops one stage at a time and everything is restored. A low-memory signal holds the critical level for a while, since
+ * the system sends it once rather than repeatedly.
+ */
+public class ResourceGovernor {
+    private static final String LOG_TAG = "ResourceGovernor";
+
+    public static final int LEVEL_NORMAL = 0;
+    public static final int LEVEL_MODERATE = 1;
+    public static final int LEVEL_LOW = 2;
+    public static final int LEVEL_CRITICAL = 3;
+
+    // share of the heap limit still free below which each level starts
+    private static final float MODERATE_HEADROOM = 0.30f;
+    private static final float LOW_HEADROOM = 0.15f;
+    private static final float CRITICAL_HEADROOM = 0.05f;
+
+    // extra headroom needed before easing off a level, so it doesn't flap around a threshold
+    private static final float EASE_MARGIN = 0.05f;
+
+    // consecutive checks that must call for a change before it's made
+    private static final int READINGS_TO_ACT = 2;
+
+    // how long the system's low-memory signal holds the critical level
+    private static final long LOW_MEMORY_HOLD = 5 * 60 * 1000;
+
+    // Honeycomb; below it bitmap pixels live outside the Java heap, so the heap figures leave them out
+    private static final int FIRST_HEAP_BITMAPS_SDK = 11;
+
+    private final BitmapCache bitmaps;
+    private final ImagePrefetcher prefetcher;
+    private final SlideshowEngine engine;
+    private final Runnable releaseIdle;
+    private final int fullCacheSize;
+    private final int fullParallelism;
+    private final boolean bitmapsOffHeap = Integer.parseInt(Build.VERSION.SDK) < FIRST_HEAP_BITMAPS_SDK;
+
+    // guarded by this
+    private int level = LEVEL_NORMAL;
+    private long lowMemoryUntil;
+    // consecutive checks that called for a higher level, or for a lower one
+    private int raiseReadings;
+    private int easeReadings;
+
+    /**
+     * @param bitmaps
+     *            The decoded image cache; its current size is taken as the size to restore
+     * @param prefetcher
+     *            Paused under pressure
+     * @param engine
+     *            Its downloads are throttled and its idle structures released under pressure
+     * @param releaseIdle
+     *            Releases the caller's own per-widget structures; run on the thread that calls {@link #check()}
+     */
+    public ResourceGovernor(BitmapCache bitmaps, ImagePrefetcher prefetcher, SlideshowEngine engine, Runnable releaseIdle) {
+        this.bitmaps = bitmaps;
+        this.prefetcher = prefetcher;
+        this.engine = engine;
+        this.releaseIdle = releaseIdle;
+        fullCacheSize = bitmaps.maxSize();
+        fullParallelism = engine.getDownloads().getParallelism();
+    }
+
+    /**
+     * Measures the headroom and moves to the level it calls for
+     */
+    public synchronized void check() {
+        float headroom = measureHeadroom();
+        int target = levelFor(headroom);
+        if (SystemClock.elapsedRealtime() < lowMemoryUntil) {
+            // the system's word needs no second reading
+            raiseReadings = READINGS_TO_ACT;
+            target = LEVEL_CRITICAL;
+        }
+
+        boolean raise = target > level;
+        boolean ease = target < level && levelFor(headroom - EASE_MARGIN) < level;
+        raiseReadings = raise ? raiseReadings + 1 : 0;
+        easeReadings = ease ? easeReadings + 1 : 0;
+
+        if (raise && raiseReadings >= READINGS_TO_ACT) {
+            apply(target);
+        } else if (ease && easeReadings >= READINGS_TO_ACT) {
+            // one stage at a time, so a brief dip in use doesn't restore everything at once
+            apply(level - 1);
+        }
+    }
+
+    /**
+     * Moves straight to the critical level for a while; called when the system says it's running low
+     */
+    public synchronized void onLowMemory() {
+        lowMemoryUntil = SystemClock.elapsedRealtime() + LOW_MEMORY_HOLD;
+        apply(LEVEL_CRITICAL);
+    }
+
+    /**
+     * @return The current pressure level, one of the LEVEL constants
+     */
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    private void apply(int newLevel) {
+        if (newLevel != level && Log.isLoggable(LOG_TAG, Log.INFO)) {
+            Log.i(LOG_TAG, "Memory pressure level " + level + " -> " + newLevel);
+        }
+        level = newLevel;
+        raiseReadings = 0;
+        easeReadings = 0;
+
+        switch (newLevel) {
+        case LEVEL_NORMAL:
+            bitmaps.setMaxSize(fullCacheSize);
+            break;
+        case LEVEL_MODERATE:
+            bitmaps.setMaxSize(fullCacheSize / 2);
+            break;
+        case LEVEL_LOW:
+            bitmaps.setMaxSize(fullCacheSize / 4);
+            break;
+        default:
+            // leaves room for the image being drawn
+            bitmaps.setMaxSize(fullCacheSize / 8);
+            bitmaps.evictAll();
+            break;
+        }
+
+        prefetcher.setPaused(newLevel >= LEVEL_MODERATE);
+
+        DownloadExecutor downloads = engine.getDownloads();
+        downloads.setParallelism(newLevel >= LEVEL_LOW ? 1 : fullParallelism);
+
+        if (newLevel >= LEVEL_LOW) {
+            engine.releaseIdleResources();
+            releaseIdle.run();
+        }
+    }
+
+    private static int levelFor(float headroom) {
+        if (headroom < CRITICAL_HEADROOM) {
+            return LEVEL_CRITICAL;
+        } else if (headroom < LOW_HEADROOM) {
+            return LEVEL_LOW;
+        } else if (headroom < MODERATE_HEADROOM) {
+            return LEVEL_MODERATE;
+        }
+        return LEVEL_NORMAL;
+    }
+
+    // share of the heap limit not yet in use
+    private float measureHeadroom() {
+        Runtime runtime = Runtime.getRuntime();
+        long max = runtime.maxMemory();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        if (bitmapsOffHeap) {
+            // they count against the same limit all the same
+            used += bitmaps.size();
+        }
+        return max > 0 ? (float) (max - used) / max : 1f;
+    }
+}
@@ -0,0 +1,223 @@
+package com.mamlambo.imageswidget;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Runs the service's commands on one background thread instead of the main thread, merging the ones that pile up for the same widget.
+ *
+ * Each widget has at most one pending command. A request to move on absorbs a plain redraw and any earlier request to move on, so a burst of alarms shows
+ * one new image rather than several in a row; a stop request cancels whatever else was pending for the widget. Everything that arrived while the thread was
+ * busy is handled in the next pass.
+ */
+public class WidgetCommandQueue {
+    private static final String LOG_TAG = "WidgetCommandQueue";
+
+    /**
+     * Carries out the commands, always on the queue's thread
+     */
+    public interface CommandHandler {
+        /**
+         * Draws a widget
+         *
+         * @param appWidgetId
+         *            The widget
+         * @param advance
+         *            true to move on to the next image first
+         */
+        void onUpdate(int appWidgetId, boolean advance);
+
+        /**
+         * Stops showing a widget that was deleted
+         *
+         * @param appWidgetId
+         *            The widget
+         */
+        void onStop(int appWidgetId);
+
+        /**
+         * Called after a pass once nothing is pending
+         *
+         * @param startId
+         *            The start ID of the last command handled
+         */
+        void onIdle(int startId);
+    }
+
+    // the pending command for a widget; a later command only ever replaces one that's lower
+    private static final int COMMAND_UPDATE = 1;
+    private static final int COMMAND_NEXT = 2;
+    private static final int COMMAND_STOP = 3;
+
+    private final CommandHandler handler;
+    private final ExecutorService executor;
+
+    // guarded by this
+    private LinkedHashMap<Integer, Integer> pending = new LinkedHashMap<Integer, Integer>();
+    private boolean drainScheduled;
+    private int lastStartId;
+    private long queued;
+    private long merged;
+
+    private final Runnable drainRunnable = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param handler
+     *            Carries out the commands
+     */
+    public WidgetCommandQueue(CommandHandler handler) {
+        this.handler = handler;
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ImagesWidgetCommands");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues a redraw of a widget
+     *
+     * @param appWidgetId
+     *            The widget
+     * @param advance
+     *            true to move on to the next image first
+     * @param startId
+     *            The start ID the command arrived with
+     */
+    public void update(int appWidgetId, boolean advance, int startId) {
+        enqueue(appWidgetId, advance ? COMMAND_NEXT : COMMAND_UPDATE, startId);
+    }
+
+    /**
+     * Queues a stop request for a widget, cancelling anything else pending for it
+     *
+     * @param appWidgetId
+     *            The widget
+     * @param startId
+     *            The start ID the command arrived with
+     */
+    public void stop(int appWidgetId, int startId) {
+        enqueue(appWidgetId, COMMAND_STOP, startId);
+    }
+
+    /**
+     * Runs a task on the queue's thread, after the commands already pending
+     *
+     * @param task
+     *            The task
+     */
+    public synchronized void post(Runnable task) {
+        if (!executor.isShutdown()) {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Stops taking commands and waits a little for the pending ones to finish
+     *
+     * @param timeoutMillis
+     *            The longest to wait
+     */
+    public void shutdown(long timeoutMillis) {
+        synchronized (this) {
+            executor.shutdown();
+        }
+        try {
+            executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The number of commands queued since this queue was created
+     */
+    public synchronized long getQueuedCount() {
+        return queued;
+    }
+
+    /**
+     * @return The number of commands merged into one already pending for the same widget
+     */
+    public synchronized long getMergedCount() {
+        return merged;
+    }
+
+    private synchronized void enqueue(int appWidgetId, int command, int startId) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        queued++;
+        lastStartId = startId;
+
+        Integer previous = pending.get(appWidgetId);
+        if (previous != null) {
+            merged++;
+            if (previous.intValue() >= command) {
+                return;
+            }
+        }
+        pending.put(appWidgetId, command);
+
+        if (!drainScheduled) {
+            drainScheduled = true;
+            executor.execute(drainRunnable);
+        }
+    }
+
+    private void drain() {
+        LinkedHashMap<Integer, Integer> batch;
+        int startId;
+        synchronized (this) {
+            drainScheduled = false;
+
+            // commands keep queueing while this batch is handled
+            batch = pending;
+            pending = new LinkedHashMap<Integer, Integer>();
+            startId = lastStartId;
+        }
+
+        Iterator<Map.Entry<Integer, Integer>> iterator = batch.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Integer> entry = iterator.next();
+            int appWidgetId = entry.getKey();
+            try {
+                switch (entry.getValue()) {
+                case COMMAND_STOP:
+                    handler.onStop(appWidgetId);
+                    break;
+                case COMMAND_NEXT:
+                    handler.onUpdate(appWidgetId, true);
+                    break;
+                default:
+                    handler.onUpdate(appWidgetId, false);
+                    break;
+                }
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Failure handling command for widget " + appWidgetId, e);
+            }
+        }
+
+        synchronized (this) {
+            if (!pending.isEmpty()) {
+                // picked up by the pass already scheduled
+                return;
+            }
+        }
+        handler.onIdle(startId);
+    }
+}
@@ -0,0 +1,292 @@
+package com.mamlambo.imageswidget;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.mamlambo.imageswidget.ImagesWidgetProvider.WidgetState;
+
+/**
+ * In-memory home of every widget's {@link WidgetState}, backed by the shared preferences.
+ *
+ * Each widget's state is read from preferences once and then served from memory, and its preference keys are built once, so looking up state on a hot path
+ * does no I/O and allocates only the copy it hands out. Callers get copies because they run on both the main thread and the service's command thread; the
+ * cached state is only touched with the store locked. Writes update memory immediately and reach the disk on a background thread, batched with any other writes made within
+ * {@link #WRITE_DELAY} milliseconds. Preference changes made outside the store invalidate the affected entry; the store recognizes its own writes by their
+ * values, since the change notifications for them arrive later on the main thread.
+ */
+public class WidgetStateStore implements SharedPreferences.OnSharedPreferenceChangeListener {
+    // how long writes are collected before they're committed together
+    public static final long WRITE_DELAY = 500;
+
+    private static WidgetStateStore instance;
+
+    private final SharedPreferences prefs;
+    private final ScheduledExecutorService writer;
+
+    // all guarded by this
+    private final SparseArray<WidgetState> states = new SparseArray<WidgetState>();
+    private final SparseArray<Keys> keys = new SparseArray<Keys>();
+    private final SparseBooleanArray dirty = new SparseBooleanArray();
+    private final SparseArray<Keys> deleted = new SparseArray<Keys>();
+    private boolean writeScheduled;
+
+    private final Runnable writeRunnable = new Runnable() {
+        public void run() {
+            writePending();
+        }
+    };
+
+    /**
+     * @param context
+     *            Any context of this application
+     * @return The store shared by the whole process
+     */
+    public static synchronized WidgetStateStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new WidgetStateStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private WidgetStateStore(Context context) {
+        prefs = context.getSharedPreferences(ImagesWidgetConfiguration.PREFS_NAME, 0);
+        prefs.registerOnSharedPreferenceChangeListener(this);
+
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ImagesWidgetStateWriter");
+            }
+        });
+    }
+
+    /**
+     * Retrieves the state of a widget. The returned object is a copy: changes to it must be saved with one of the store methods.
+     *
+     * @param appWidgetId
+     *            App Widget identifier information to retrieve
+     * @return the widget's state
+     */
+    public synchronized WidgetState get(int appWidgetId) {
+        WidgetState cached = cached(appWidgetId);
+        WidgetState state = new WidgetState();
+        state.updateRateSeconds = cached.updateRateSeconds;
+        state.paused = cached.paused;
+        state.controlsActive = cached.controlsActive;
+        state.feedUrl = cached.feedUrl;
+        state.lastImagePath = cached.lastImagePath;
+        return state;
+    }
+
+    /**
+     * Saves the user-controlled parts of a widget's state: paused and controlsActive
+     *
+     * @param appWidgetId
+     *            App Widget identifier this state represents
+     * @param state
+     *            The WidgetState to store
+     */
+    public synchronized void storeControls(int appWidgetId, WidgetState state) {
+        WidgetState cached = cached(appWidgetId);
+        cached.paused = state.paused;
+        cached.controlsActive = state.controlsActive;
+        markDirty(appWidgetId);
+    }
+
+    /**
+     * Saves the path of the image last shown in a widget
+     *
+     * @param appWidgetId
+     *            App Widget identifier the image was shown in
+     * @param imagePath
+     *            Local path to the image
+     */
+    public synchronized void storeLastImagePath(int appWidgetId, String imagePath) {
+        cached(appWidgetId).lastImagePath = imagePath;
+        markDirty(appWidgetId);
+    }
+
+    /**
+     * Saves the settings chosen in the configuration activity
+     *
+     * @param appWidgetId
+     *            App Widget identifier being configured
+     * @param updateRateSeconds
+     *            Seconds between images
+     * @param feedUrl
+     *            The feed to show
+     */
+    public synchronized void storeConfiguration(int appWidgetId, int updateRateSeconds, String feedUrl) {
+        WidgetState cached = cached(appWidgetId);
+        cached.updateRateSeconds = updateRateSeconds;
+        cached.feedUrl = feedUrl;
+        markDirty(appWidgetId);
+    }
+
+    /**
+     * Removes a set of state information
+     *
+     * @param appWidgetId
+     *            App Widget identifier to clear the information for
+     */
+    public synchronized void delete(int appWidgetId) {
+        deleted.put(appWidgetId, keysFor(appWidgetId));
+        states.remove(appWidgetId);
+        keys.remove(appWidgetId);
+        dirty.delete(appWidgetId);
+        scheduleWrite();
+    }
+
+    /**
+     * Writes anything still pending right away, on the calling thread
+     */
+    public void flush() {
+        writePending();
+    }
+
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (key == null) {
+            return;
+        }
+
+        // all widget keys end in -<appWidgetId>
+        int dash = key.lastIndexOf('-');
+        if (dash < 0) {
+            return;
+        }
+        try {
+            int appWidgetId = Integer.parseInt(key.substring(dash + 1));
+            synchronized (this) {
+                // pending writes win over whatever was written behind our back, and a value memory already holds is most likely our own write
+                WidgetState state = states.get(appWidgetId);
+                if (state != null && !dirty.get(appWidgetId) && !matches(state, keysFor(appWidgetId), key)) {
+                    states.remove(appWidgetId);
+                }
+            }
+        } catch (NumberFormatException e) {
+            // not a widget key
+        }
+    }
+
+    // called with the store locked
+    private WidgetState cached(int appWidgetId) {
+        WidgetState state = states.get(appWidgetId);
+        if (state == null) {
+            state = read(appWidgetId);
+            states.put(appWidgetId, state);
+        }
+        return state;
+    }
+
+    private WidgetState read(int appWidgetId) {
+        Keys k = keysFor(appWidgetId);
+        WidgetState state = new WidgetState();
+        state.updateRateSeconds = prefs.getInt(k.updateRate, -1);
+        state.paused = prefs.getBoolean(k.paused, false);
+        state.controlsActive = prefs.getBoolean(k.controlsActive, false);
+        state.feedUrl = prefs.getString(k.feedUrl, "");
+        state.lastImagePath = prefs.getString(k.lastImage, null);
+        return state;
+    }
+
+    // whether the stored value of key is the one memory holds
+    private boolean matches(WidgetState state, Keys k, String key) {
+        if (key.equals(k.updateRate)) {
+            return prefs.getInt(key, -1) == state.updateRateSeconds;
+        } else if (key.equals(k.paused)) {
+            return prefs.getBoolean(key, false) == state.paused;
+        } else if (key.equals(k.controlsActive)) {
+            return prefs.getBoolean(key, false) == state.controlsActive;
+        } else if (key.equals(k.feedUrl)) {
+            return prefs.getString(key, "").equals(state.feedUrl);
+        } else if (key.equals(k.lastImage)) {
+            String lastImage = prefs.getString(key, null);
+            return lastImage == null ? state.lastImagePath == null : lastImage.equals(state.lastImagePath);
+        }
+        return false;
+    }
+
+    private Keys keysFor(int appWidgetId) {
+        Keys k = keys.get(appWidgetId);
+        if (k == null) {
+            k = new Keys(appWidgetId);
+            keys.put(appWidgetId, k);
+        }
+        return k;
+    }
+
+    private void markDirty(int appWidgetId) {
+        dirty.put(appWidgetId, true);
+        deleted.remove(appWidgetId);
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (!writeScheduled) {
+            writeScheduled = true;
+            writer.schedule(writeRunnable, WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void writePending() {
+        SharedPreferences.Editor edit = prefs.edit();
+        synchronized (this) {
+            writeScheduled = false;
+            if (dirty.size() == 0 && deleted.size() == 0) {
+                return;
+            }
+
+            for (int i = 0; i < dirty.size(); i++) {
+                int appWidgetId = dirty.keyAt(i);
+                WidgetState state = states.get(appWidgetId);
+                if (state == null) {
+                    continue;
+                }
+                Keys k = keysFor(appWidgetId);
+                edit.putInt(k.updateRate, state.updateRateSeconds);
+                edit.putBoolean(k.paused, state.paused);
+                edit.putBoolean(k.controlsActive, state.controlsActive);
+                edit.putString(k.feedUrl, state.feedUrl);
+                if (state.lastImagePath != null) {
+                    edit.putString(k.lastImage, state.lastImagePath);
+                }
+            }
+            for (int i = 0; i < deleted.size(); i++) {
+                Keys k = deleted.valueAt(i);
+                edit.remove(k.updateRate);
+                edit.remove(k.paused);
+                edit.remove(k.controlsActive);
+                edit.remove(k.feedUrl);
+                edit.remove(k.lastImage);
+            }
+            dirty.clear();
+            deleted.clear();
+        }
+        edit.commit();
+    }
+
+    /**
+     * The preference keys for one widget, built once
+     */
+    private static final class Keys {
+        final String updateRate;
+        final String paused;
+        final String controlsActive;
+        final String feedUrl;
+        final String lastImage;
+
+        Keys(int appWidgetId) {
+            updateRate = String.format(ImagesWidgetConfiguration.PREFS_UPDATE_RATE_FIELD_PATTERN, appWidgetId);
+            paused = String.format(ImagesWidgetConfiguration.PREFS_PAUSED_FIELD_PATTERN, appWidgetId);
+            controlsActive = String.format(ImagesWidgetConfiguration.PREFS_CONTROLS_ACTIVE_FIELD_PATTERN, appWidgetId);
+            feedUrl = String.format(ImagesWidgetConfiguration.PREFS_FEED_URL_PATTERN, appWidgetId);
+            lastImage = String.format(ImagesWidgetConfiguration.PREFS_LAST_IMAGE_PATTERN, appWidgetId);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.mamlambo.imageswidget;
+
+import android.appwidget.AppWidgetManager;
+import android.os.Handler;
+import android.os.Parcel;
+import android.util.Log;
+import android.util.SparseArray;
+import android.widget.RemoteViews;
+
+import com.mamlambo.imageswidget.core.Metrics;
+
+/**
+ * Collects widget updates over a short window and sends them to the host in one pass.
+ *
+ * Only the newest update for each widget is kept; anything it supersedes within the window never crosses the binder. This flattens the bursts of alarms,
+ * control taps and service starts that otherwise turn into back-to-back {@code updateAppWidget} calls, such as right after boot.
+ *
+ * The host can only take partial updates from API 11 on, so every update still carries the full {@code RemoteViews}.
+ */
+public class WidgetUpdateDispatcher {
+    private static final String LOG_TAG = "WidgetUpdateDispatcher";
+
+    private final AppWidgetManager manager;
+    private final Handler handler;
+    private final long windowMillis;
+
+    // guarded by this
+    private SparseArray<RemoteViews> pending = new SparseArray<RemoteViews>();
+    private boolean flushScheduled;
+    private long dispatched;
+    private long superseded;
+
+    private final Runnable flushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param manager
+     *            Where updates are sent
+     * @param handler
+     *            Handler for the thread updates are sent from
+     * @param windowMillis
+     *            How long to collect updates before sending them
+     */
+    public WidgetUpdateDispatcher(AppWidgetManager manager, Handler handler, long windowMillis) {
+        this.manager = manager;
+        this.handler = handler;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Queues an update, replacing any update for the same widget that hasn't been sent yet
+     *
+     * @param appWidgetId
+     *            The widget to update
+     * @param views
+     *            The widget's new content
+     */
+    public synchronized void dispatch(int appWidgetId, RemoteViews views) {
+        dispatched++;
+        if (pending.get(appWidgetId) != null) {
+            superseded++;
+        }
+        pending.put(appWidgetId, views);
+
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushRunnable, windowMillis);
+        }
+    }
+
+    /**
+     * Sends every queued update right away
+     */
+    public void flush() {
+        SparseArray<RemoteViews> batch;
+        synchronized (this) {
+            handler.removeCallbacks(flushRunnable);
+            flushScheduled = false;
+
+            // dispatch() can keep queueing while this batch is sent
+            batch = pending;
+            if (batch.size() == 0) {
+                return;
+            }
+            pending = new SparseArray<RemoteViews>();
+        }
+
+        int count = batch.size();
+        for (int i = 0; i < count; i++) {
+            try {
+                RemoteViews views = batch.valueAt(i);
+                if (Metrics.isEnabled()) {
+                    Metrics.record(Metrics.Histogram.REMOTE_VIEWS_BYTES, sizeOf(views));
+                }
+                long start = Metrics.start();
+                manager.updateAppWidget(batch.keyAt(i), views);
+                Metrics.stop(Metrics.Histogram.UPDATE_APP_WIDGET_MICROS, start);
+                Metrics.count(Metrics.Counter.WIDGET_UPDATES);
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Failure updating widget " + batch.keyAt(i), e);
+            }
+        }
+    }
+
+    /**
+     * @return The number of updates queued since this dispatcher was created
+     */
+    public synchronized long getDispatchedCount() {
+        return dispatched;
+    }
+
+    /**
+     * @return The number of updates dropped because a newer one replaced them before they were sent
+     */
+    public synchronized long getSupersededCount() {
+        return superseded;
+    }
+
+    // what crosses the binder; only measured while metrics are on since it parcels the views a second time
+    private static int sizeOf(RemoteViews views) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            views.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}